@@ -0,0 +1,62 @@
+package hudson.plugins.karma;
+
+import hudson.util.XStream2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the {@link KarmaBuildAction} of a build record, as done for every build
+ * loaded: once as recorded by reflection before {@link KarmaBuildAction.ConverterImpl},
+ * once in its compact format. Both go through the same converter, as in Jenkins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BuildRecordBenchmark {
+
+    static final String LEGACY =
+        "<hudson.plugins.karma.KarmaBuildAction plugin=\"karma@1.0\">\n" +
+        "  <line>\n    <numerator>850.0</numerator>\n    <denominator>1000.0</denominator>\n    <initialized>true</initialized>\n  </line>\n" +
+        "  <statement>\n    <numerator>1700.0</numerator>\n    <denominator>2000.0</denominator>\n    <initialized>true</initialized>\n  </statement>\n" +
+        "  <function>\n    <numerator>150.0</numerator>\n    <denominator>200.0</denominator>\n    <initialized>true</initialized>\n  </function>\n" +
+        "  <branch>\n    <numerator>350.0</numerator>\n    <denominator>500.0</denominator>\n    <initialized>true</initialized>\n  </branch>\n" +
+        "  <failed>false</failed>\n" +
+        "  <thresholds>\n    <minLine>0</minLine>\n    <maxLine>90</maxLine>\n    <minStatement>0</minStatement>\n    <maxStatement>80</maxStatement>\n" +
+        "    <minFunction>0</minFunction>\n    <maxFunction>50</maxFunction>\n    <minBranch>0</minBranch>\n    <maxBranch>50</maxBranch>\n  </thresholds>\n" +
+        "</hudson.plugins.karma.KarmaBuildAction>";
+
+    static final String COMPACT =
+        "<hudson.plugins.karma.KarmaBuildAction plugin=\"karma@1.0\" format=\"2\" line=\"850/1000\" statement=\"1700/2000\"" +
+        " function=\"150/200\" branch=\"350/500\" health=\"0,90,0,80,0,50,0,50\"/>";
+
+    private XStream2 xs;
+
+    @Setup
+    public void createXStream() {
+        xs = new XStream2();
+    }
+
+    @Benchmark
+    public Object readLegacy() {
+        return xs.fromXML(LEGACY);
+    }
+
+    @Benchmark
+    public Object readCompact() {
+        return xs.fromXML(COMPACT);
+    }
+}
@@ -0,0 +1,48 @@
+package hudson.plugins.karma;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the four totals of istanbul HTML reports from a few KB up to several MB.
+ * The reports are held in memory so that only the parsing is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LoadRatiosBenchmark {
+
+    /**
+     * Number of source file rows; 20,000 rows make a report of about 5 MB.
+     */
+    @Param({"10", "20000"})
+    public int rows;
+
+    private byte[] report;
+
+    @Setup
+    public void createReport() throws IOException {
+        report = Reports.istanbulIndex(rows).getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public Ratio[] loadRatios() throws IOException {
+        return KarmaBuildAction.loadRatios(new ByteArrayInputStream(report), null);
+    }
+}
@@ -0,0 +1,100 @@
+package hudson.plugins.karma;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classifies the source files of a monorepo against many coverage rule and
+ * exclude patterns, once with the compiled {@link PathMatcher} and once by
+ * trying every pattern on every path with Ant's own matcher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PathMatcherBenchmark {
+
+    @Param({"10", "300"})
+    public int patterns;
+
+    @Param({"50000"})
+    public int files;
+
+    private List<String> globs;
+    private String[] antGlobs;
+    private String[] paths;
+    private PathMatcher matcher;
+
+    @Setup
+    public void createTree() {
+        Random random = new Random(42);
+        String[] suffixes = { ".js", ".spec.js", ".min.js", ".ts" };
+
+        paths = new String[files];
+        for (int i = 0; i < files; i++) {
+            paths[i] = "/home/jenkins/workspace/monorepo/packages/pkg" + random.nextInt(200)
+                    + "/src/module" + random.nextInt(20) + "/sub" + random.nextInt(5)
+                    + "/file" + i + suffixes[random.nextInt(suffixes.length)];
+        }
+
+        globs = new ArrayList<String>();
+        globs.add("**/*.spec.js");
+        globs.add("**/*.min.js");
+        for (int i = 0; globs.size() < patterns; i++) {
+            switch (i % 3) {
+            case 0:
+                globs.add("packages/pkg" + i + "/**");
+                break;
+            case 1:
+                globs.add("packages/pkg" + i + "/src/module*/**/*.js");
+                break;
+            default:
+                globs.add("packages/*/src/module" + (i % 20) + "/sub?/**");
+            }
+        }
+        antGlobs = new String[globs.size()];
+        for (int i = 0; i < antGlobs.length; i++) {
+            antGlobs[i] = "**/" + globs.get(i);
+        }
+        matcher = new PathMatcher(globs);
+    }
+
+    @Benchmark
+    public long naive() {
+        long matches = 0;
+        for (String path : paths) {
+            for (String glob : antGlobs) {
+                if (SelectorUtils.matchPath(glob, path)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public long compiled() {
+        long matches = 0;
+        for (String path : paths) {
+            matches += matcher.match(path).cardinality();
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,57 @@
+package hudson.plugins.karma;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and formatting of single {@link Ratio}s, done for every metric of every report and page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RatioBenchmark {
+
+    public String value = "85% (1234/1452)";
+    public String decimalComma = "85,3% (1234,5/1452)";
+    public Ratio ratio = new Ratio(1234, 1452);
+
+    @Benchmark
+    public Ratio parseValue() throws IOException {
+        return Ratio.parseValue(value);
+    }
+
+    @Benchmark
+    public Ratio parseDecimalComma() throws IOException {
+        return Ratio.parseValue(decimalComma);
+    }
+
+    @Benchmark
+    public Ratio addValue() {
+        Ratio r = new Ratio();
+        r.addValue(value);
+        return r;
+    }
+
+    @Benchmark
+    public String format() {
+        return ratio.toString();
+    }
+
+    @Benchmark
+    public int percentage() {
+        return ratio.getPercentage();
+    }
+}
@@ -0,0 +1,96 @@
+package hudson.plugins.karma;
+
+import hudson.FilePath;
+import hudson.util.NullStream;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the publisher's old two-pass archiving (copy the report into the
+ * build folder, then read it again to parse it) with the single teed pass.
+ *
+ * <p>
+ * Both sides run against local files, so the numbers only show the saved
+ * re-read; on a remote agent every pass also crosses the channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReportArchiveBenchmark {
+
+    /**
+     * Number of source file rows in the synthetic report.
+     */
+    @Param({"100", "20000"})
+    public int rows;
+
+    private File workspace;
+    private File buildDir;
+    private FilePath[] reports;
+    private FilePath karmaFolder;
+
+    @Setup(Level.Trial)
+    public void createReport() throws IOException {
+        workspace = File.createTempFile("karma-ws", "");
+        workspace.delete();
+        workspace.mkdirs();
+        File report = new File(workspace, "index.html");
+        FileUtils.writeStringToFile(report, Reports.istanbulIndex(rows), "UTF-8");
+        reports = new FilePath[] { new FilePath(report) };
+    }
+
+    @Setup(Level.Invocation)
+    public void createBuildDir() throws IOException {
+        buildDir = File.createTempFile("karma-build", "");
+        buildDir.delete();
+        karmaFolder = new FilePath(new File(buildDir, "karma"));
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteBuildDir() throws IOException {
+        FileUtils.deleteDirectory(buildDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteReport() throws IOException {
+        FileUtils.deleteDirectory(workspace);
+    }
+
+    @Benchmark
+    public Ratio[] copyThenParse() throws IOException, InterruptedException {
+        karmaFolder.mkdirs();
+        reports[0].copyTo(karmaFolder.child("coverage.xml"));
+        InputStream in = reports[0].read();
+        try {
+            return KarmaBuildAction.loadRatios(in, null);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public Ratio[] teedSingleReadPass() throws IOException, InterruptedException {
+        return KarmaPublisher.saveKarmaCoverageReports(karmaFolder, reports);
+    }
+}
@@ -0,0 +1,34 @@
+package hudson.plugins.karma;
+
+/**
+ * Generates synthetic Karma (istanbul) coverage reports for the benchmarks.
+ */
+final class Reports {
+
+    private Reports() {
+    }
+
+    /**
+     * Builds an istanbul HTML summary page: the four ratio lines the publisher
+     * looks for, followed by one table row per source file.
+     */
+    static String istanbulIndex(int rows) {
+        StringBuilder buf = new StringBuilder(256 * rows + 1024);
+        buf.append("<!doctype html>\n<html lang=\"en\">\n<head><title>Code coverage report for All files</title></head>\n<body>\n");
+        buf.append("<div class=\"header high\">\n<h1>Code coverage report for <span class=\"entity\">All files</span></h1>\n<h2>\n");
+        long total = 20L * rows;
+        buf.append("    Statements: <span class=\"metric\">85.3% <small>(").append(total * 85 / 100).append(" / ").append(total).append(")</small></span> &nbsp;&nbsp;&nbsp;&nbsp;\n");
+        buf.append("    Branches: <span class=\"metric\">70% <small>(").append(total * 7 / 20).append(" / ").append(total / 2).append(")</small></span> &nbsp;&nbsp;&nbsp;&nbsp;\n");
+        buf.append("    Functions: <span class=\"metric\">75% <small>(").append(total * 3 / 20).append(" / ").append(total / 5).append(")</small></span> &nbsp;&nbsp;&nbsp;&nbsp;\n");
+        buf.append("    Lines: <span class=\"metric\">85% <small>(").append(total * 17 / 20).append(" / ").append(total).append(")</small></span> &nbsp;&nbsp;&nbsp;&nbsp;\n");
+        buf.append("</h2>\n</div>\n<table class=\"coverage-summary\">\n<tbody>\n");
+        for (int i = 0; i < rows; i++) {
+            buf.append("<tr><td class=\"file high\" data-value=\"src/module").append(i)
+               .append("/\"><a href=\"src/module").append(i).append("/index.html\">src/module").append(i)
+               .append("/</a></td><td data-value=\"85\" class=\"pic high\"><span class=\"cover-fill\" style=\"width: 85px;\"></span></td>")
+               .append("<td data-value=\"85\" class=\"pct high\">85%</td><td data-value=\"20\" class=\"abs high\">17/20</td></tr>\n");
+        }
+        buf.append("</tbody>\n</table>\n</body>\n</html>\n");
+        return buf.toString();
+    }
+}
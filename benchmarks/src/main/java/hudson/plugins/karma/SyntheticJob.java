@@ -0,0 +1,147 @@
+package hudson.plugins.karma;
+
+import hudson.model.AbstractProject;
+import hudson.model.DependencyGraph;
+import hudson.model.Descriptor;
+import hudson.model.Result;
+import hudson.tasks.Publisher;
+import hudson.util.DescribableList;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Job publishing coverage with a long history of builds carrying a {@link KarmaBuildAction},
+ * for the benchmarks that walk builds. The builds are kept in memory; only the files of the
+ * job itself, e.g. its {@link KarmaIndex} and {@link KarmaDays}, are written, to a temporary
+ * folder removed by {@link #dispose()}.
+ */
+public final class SyntheticJob extends AbstractProject<SyntheticJob, SyntheticRun> {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * Builds, newest first like the real build maps.
+     */
+    private final TreeMap<Integer, SyntheticRun> runs = new TreeMap<Integer, SyntheticRun>(Collections.reverseOrder());
+
+    private final DescribableList<Publisher, Descriptor<Publisher>> publishers;
+
+    private File rootDir;
+
+    public SyntheticJob(String name) {
+        super(null, name);
+        publishers = new DescribableList<Publisher, Descriptor<Publisher>>(this, Collections.<Publisher>singletonList(new KarmaPublisher()));
+    }
+
+    /**
+     * Creates a job with one build every few hours up to now.
+     *
+     * @param failureRatio
+     *      share of the builds that fail and carry no coverage.
+     */
+    public static SyntheticJob create(String name, int builds, double failureRatio, long seed) {
+        Random random = new Random(seed);
+        SyntheticJob job = new SyntheticJob(name);
+        long now = System.currentTimeMillis();
+        SyntheticRun previous = null;
+        for (int n = 1; n <= builds; n++) {
+            long timestamp = now - (builds - n) * DAY / 6;
+            SyntheticRun run;
+            if (random.nextDouble() < failureRatio) {
+                run = new SyntheticRun(job, n, timestamp, Result.FAILURE, null, previous);
+            } else {
+                int total = 1000 + random.nextInt(100);
+                KarmaBuildAction action = new KarmaBuildAction(null, null,
+                        new Ratio(random.nextInt(total), total), new Ratio(random.nextInt(total), total),
+                        new Ratio(random.nextInt(total / 5), total / 5), new Ratio(random.nextInt(total / 2), total / 2),
+                        new KarmaHealthReportThresholds());
+                run = new SyntheticRun(job, n, timestamp, Result.SUCCESS, action, previous);
+            }
+            job.runs.put(n, run);
+            previous = run;
+        }
+        return job;
+    }
+
+    /**
+     * Writes the index and the daily roll-ups of the job, as a job that has been publishing
+     * for a while has them, so that the portlets read them instead of the builds.
+     */
+    public SyntheticJob index() throws IOException {
+        KarmaDays.of(this).slice(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        return this;
+    }
+
+    /**
+     * Deletes the files of the job.
+     */
+    public synchronized void dispose() throws IOException {
+        if (rootDir != null) {
+            FileUtils.deleteDirectory(rootDir);
+            rootDir = null;
+        }
+    }
+
+    @Override
+    public synchronized File getRootDir() {
+        if (rootDir == null) {
+            try {
+                rootDir = File.createTempFile("karma-" + getName(), "");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            rootDir.delete();
+            rootDir.mkdirs();
+        }
+        return rootDir;
+    }
+
+    @Override
+    public DescribableList<Publisher, Descriptor<Publisher>> getPublishersList() {
+        return publishers;
+    }
+
+    @Override
+    protected Class<SyntheticRun> getBuildClass() {
+        return SyntheticRun.class;
+    }
+
+    @Override
+    public boolean isFingerprintConfigured() {
+        return false;
+    }
+
+    @Override
+    protected void buildDependencyGraph(DependencyGraph graph) {
+    }
+
+    @Override
+    public boolean isBuildable() {
+        return false;
+    }
+
+    @Override
+    public SyntheticRun getLastBuild() {
+        return runs.isEmpty() ? null : runs.get(runs.firstKey());
+    }
+
+    @Override
+    public SyntheticRun getBuildByNumber(int n) {
+        return runs.get(n);
+    }
+
+    @Override
+    public SyntheticRun getLastSuccessfulBuild() {
+        for (SyntheticRun run : runs.values()) {
+            if (run.getResult() == Result.SUCCESS) {
+                return run;
+            }
+        }
+        return null;
+    }
+}
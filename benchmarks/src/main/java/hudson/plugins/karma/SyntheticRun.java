@@ -0,0 +1,70 @@
+package hudson.plugins.karma;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.Result;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Build of a {@link SyntheticJob}. Its coverage is found by {@link KarmaBuildAction#of}
+ * among its actions, as for builds recorded in <tt>build.xml</tt>, so nothing is read from disk.
+ */
+public final class SyntheticRun extends AbstractBuild<SyntheticJob, SyntheticRun> {
+    private final Result result;
+    private final KarmaBuildAction action;
+    private final SyntheticRun previous;
+
+    SyntheticRun(SyntheticJob job, int number, long timestamp, Result result, KarmaBuildAction action, SyntheticRun previous) {
+        super(job, calendar(timestamp));
+        this.number = number;
+        this.result = result;
+        this.action = action;
+        this.previous = previous;
+    }
+
+    private static Calendar calendar(long timestamp) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(timestamp);
+        return c;
+    }
+
+    /**
+     * Never run: the build is complete from the start.
+     */
+    public void run() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Result getResult() {
+        return result;
+    }
+
+    @Override
+    public SyntheticRun getPreviousBuild() {
+        return previous;
+    }
+
+    /**
+     * Only knows the coverage action, so that no extension lookup is needed.
+     */
+    @Override
+    public List<Action> getActions() {
+        return action == null ? Collections.<Action>emptyList() : Collections.<Action>singletonList(action);
+    }
+
+    @Override
+    public <T extends Action> T getAction(Class<T> type) {
+        return type.isInstance(action) ? type.cast(action) : null;
+    }
+
+    /**
+     * The coverage of this build, or null if it failed.
+     */
+    public KarmaBuildAction getKarmaAction() {
+        return action;
+    }
+}
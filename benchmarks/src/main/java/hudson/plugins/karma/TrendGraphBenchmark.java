@@ -0,0 +1,83 @@
+package hudson.plugins.karma;
+
+import hudson.model.Run;
+
+import org.jfree.data.category.CategoryDataset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the dataset of the per-job trend graph over long build histories,
+ * without rendering it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TrendGraphBenchmark {
+
+    @Param({"100", "5000"})
+    public int builds;
+
+    private Coverage last;
+
+    @Setup
+    public void createHistory() {
+        SyntheticJob job = SyntheticJob.create("job", builds, 0, 42);
+        List<SyntheticRun> history = new ArrayList<SyntheticRun>();
+        for (SyntheticRun run = job.getLastBuild(); run != null; run = run.getPreviousBuild()) {
+            history.add(run);
+        }
+        Collections.reverse(history);
+        Coverage previous = null;
+        for (SyntheticRun run : history) {
+            previous = new Coverage(run, previous);
+        }
+        last = previous;
+    }
+
+    @Benchmark
+    public CategoryDataset createDataSet() {
+        return KarmaCoverageObject.createTrendDataSet(last).build();
+    }
+
+    /**
+     * Coverage of one build, linked to the previous one like {@link KarmaBuildAction}s are.
+     */
+    static final class Coverage extends KarmaCoverageObject<Coverage> {
+        private final SyntheticRun run;
+        private final Coverage previous;
+
+        Coverage(SyntheticRun run, Coverage previous) {
+            this.run = run;
+            this.previous = previous;
+            counts = run.getKarmaAction().counts.clone();
+        }
+
+        @Override
+        public Run<?, ?> getBuild() {
+            return run;
+        }
+
+        @Override
+        public Coverage getPreviousResult() {
+            return previous;
+        }
+    }
+}
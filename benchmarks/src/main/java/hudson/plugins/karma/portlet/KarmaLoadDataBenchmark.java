@@ -0,0 +1,78 @@
+package hudson.plugins.karma.portlet;
+
+import hudson.model.Job;
+import hudson.plugins.karma.SyntheticJob;
+import hudson.plugins.karma.portlet.bean.KarmaCoverageResultSummary;
+
+import org.joda.time.LocalDate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the data of the dashboard portlets over synthetic views: the trend chart
+ * merges the daily roll-ups of each job within the range, the grid reads the last
+ * successful build of each job.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class KarmaLoadDataBenchmark {
+
+    @Param({"10", "300"})
+    public int jobs;
+
+    @Param({"100", "2000"})
+    public int builds;
+
+    /**
+     * Days shown by the trend chart.
+     */
+    @Param({"30", "365"})
+    public int days;
+
+    private List<Job> view;
+
+    @Setup
+    public void createView() throws IOException {
+        view = new ArrayList<Job>();
+        for (int i = 0; i < jobs; i++) {
+            view.add(SyntheticJob.create("job" + i, builds, 0.1, i).index());
+        }
+    }
+
+    @TearDown
+    public void deleteView() throws IOException {
+        for (Job job : view) {
+            ((SyntheticJob) job).dispose();
+        }
+    }
+
+    @Benchmark
+    public Map<LocalDate, KarmaCoverageResultSummary> loadChartDataWithinRange() {
+        return KarmaLoadData.loadChartDataWithinRange(view, days);
+    }
+
+    @Benchmark
+    public KarmaCoverageResultSummary getResultSummary() {
+        return KarmaLoadData.getResultSummary(view);
+    }
+}
@@ -0,0 +1,63 @@
+package hudson.plugins.karma.portlet.chart;
+
+import hudson.model.Job;
+import hudson.plugins.karma.SyntheticJob;
+import hudson.plugins.karma.portlet.KarmaLoadData;
+import hudson.plugins.karma.portlet.bean.KarmaCoverageResultSummary;
+
+import org.jfree.data.category.CategoryDataset;
+import org.joda.time.LocalDate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the dataset of the dashboard trend chart from already loaded summaries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TrendChartBenchmark {
+
+    @Param({"10", "300"})
+    public int jobs;
+
+    @Param({"30", "365"})
+    public int days;
+
+    private Map<LocalDate, KarmaCoverageResultSummary> summaries;
+
+    @Setup
+    public void loadSummaries() throws IOException {
+        List<Job> view = new ArrayList<Job>();
+        for (int i = 0; i < jobs; i++) {
+            view.add(SyntheticJob.create("job" + i, 6 * days, 0.1, i).index());
+        }
+        summaries = KarmaLoadData.loadChartDataWithinRange(view, days);
+        for (Job job : view) {
+            ((SyntheticJob) job).dispose();
+        }
+    }
+
+    @Benchmark
+    public CategoryDataset buildDataSet() {
+        return KarmaBuilderTrendChart.buildDataSet(summaries);
+    }
+}
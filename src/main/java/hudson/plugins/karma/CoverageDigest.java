@@ -0,0 +1,180 @@
+package hudson.plugins.karma;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Small mergeable sketch of the distribution of coverage percentages, to get
+ * quantiles of many jobs without their raw values: a t-digest, i.e. weighted
+ * centroids kept small near the median and tiny at the tails.
+ *
+ * <p>
+ * Percentages are between 0 and 100, so means are kept as floats, which
+ * also lets centroids be sorted as primitive keys.
+ */
+public final class CoverageDigest {
+
+    /**
+     * Bounds the number of centroids; higher is more accurate.
+     */
+    static final int COMPRESSION = 50;
+
+    private int size;
+    private float[] mean = new float[8];
+    private float[] weight = new float[8];
+
+    /**
+     * Number of centroids known to be sorted and compressed.
+     */
+    private int compressed;
+
+    private double total;
+    private float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+
+    public CoverageDigest() {
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public double getTotalWeight() {
+        return total;
+    }
+
+    /**
+     * Adds one percentage.
+     */
+    public void add(float value, float w) {
+        if (size == mean.length) {
+            if (size - compressed >= COMPRESSION) {
+                compress();
+            }
+            if (size == mean.length) {
+                mean = Arrays.copyOf(mean, size * 2);
+                weight = Arrays.copyOf(weight, size * 2);
+            }
+        }
+        mean[size] = value;
+        weight[size] = w;
+        size++;
+        total += w;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the centroids of another digest, with their weights scaled.
+     */
+    public void merge(CoverageDigest other, float scale) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.mean[i], other.weight[i] * scale);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Gets the percentage below which the given share of the weight falls, or NaN if empty.
+     */
+    public float quantile(double q) {
+        if (size == 0) {
+            return Float.NaN;
+        }
+        compress();
+        double index = q * total;
+        if (size == 1 || index <= weight[0] / 2) {
+            return size == 1 ? mean[0] : interpolate(min, mean[0], index / (weight[0] / 2));
+        }
+        double seen = weight[0] / 2;
+        for (int i = 1; i < size; i++) {
+            double step = (weight[i - 1] + weight[i]) / 2;
+            if (index <= seen + step) {
+                return interpolate(mean[i - 1], mean[i], (index - seen) / step);
+            }
+            seen += step;
+        }
+        double rest = weight[size - 1] / 2;
+        return interpolate(mean[size - 1], max, Math.min(1, (index - seen) / rest));
+    }
+
+    private static float interpolate(float a, float b, double t) {
+        return (float) (a + (b - a) * t);
+    }
+
+    /**
+     * Sorts the centroids and merges neighbours while the merged weight stays
+     * within the bound for its place in the distribution.
+     */
+    private void compress() {
+        if (compressed == size) {
+            return;
+        }
+        // non-negative floats sort as their bits
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) Float.floatToIntBits(Math.max(0f, mean[i])) << 32) | i;
+        }
+        Arrays.sort(keys);
+        float[] m = new float[Math.max(8, Math.min(size, 2 * COMPRESSION))];
+        float[] w = new float[m.length];
+        int n = 0;
+        double before = 0;
+        for (long key : keys) {
+            int i = (int) key;
+            if (n > 0) {
+                double proposed = w[n - 1] + weight[i];
+                double q = (before + proposed / 2) / total;
+                if (proposed <= 4 * total * q * (1 - q) / COMPRESSION) {
+                    m[n - 1] += (mean[i] - m[n - 1]) * weight[i] / proposed;
+                    w[n - 1] = (float) proposed;
+                    continue;
+                }
+                before += w[n - 1];
+            }
+            if (n == m.length) {
+                m = Arrays.copyOf(m, n * 2);
+                w = Arrays.copyOf(w, n * 2);
+            }
+            m[n] = mean[i];
+            w[n] = weight[i];
+            n++;
+        }
+        mean = m;
+        weight = w;
+        size = compressed = n;
+    }
+
+    void write(DataOutput out) throws IOException {
+        compress();
+        out.writeShort(size);
+        if (size > 0) {
+            out.writeFloat(min);
+            out.writeFloat(max);
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeFloat(mean[i]);
+            out.writeFloat(weight[i]);
+        }
+    }
+
+    static CoverageDigest read(DataInput in) throws IOException {
+        CoverageDigest d = new CoverageDigest();
+        int n = in.readUnsignedShort();
+        if (n > 0) {
+            d.min = in.readFloat();
+            d.max = in.readFloat();
+            d.mean = new float[n];
+            d.weight = new float[n];
+        }
+        for (int i = 0; i < n; i++) {
+            d.mean[i] = in.readFloat();
+            d.weight[i] = in.readFloat();
+            d.total += d.weight[i];
+        }
+        d.size = d.compressed = n;
+        return d;
+    }
+}
@@ -0,0 +1,361 @@
+package hudson.plugins.karma;
+
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOException2;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.DirectoryScanner;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coverage of the lines changed since a base revision, computed on the agent
+ * that holds the workspace.
+ *
+ * <p>
+ * The changed lines come from <tt>git diff --unified=0 base...HEAD</tt> in the
+ * workspace, as sorted intervals per file. The base comes from the job
+ * configuration expanded with the build parameters, so it is only passed to git
+ * once it is known to name a commit. Only the lcov records of those files
+ * are parsed; everything else is skipped at the <tt>SF:</tt> line. Just the
+ * resulting ratio and the uncovered hunks are sent back to the controller.
+ */
+public final class DiffCoverage implements FileCallable<DiffCoverage.Result> {
+    private final String baseRef;
+    private final String lcovIncludes;
+    private final String excludes;
+
+    public DiffCoverage(String baseRef, String lcovIncludes, String excludes) {
+        this.baseRef = baseRef;
+        this.lcovIncludes = lcovIncludes;
+        this.excludes = excludes;
+    }
+
+    public Result invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        if (baseRef.startsWith("-")) {
+            throw new IOException("Not a revision: " + baseRef);
+        }
+        if (git(workspace, "rev-parse", "--verify", "--quiet", baseRef + "^{commit}") == null) {
+            throw new IOException("Unknown revision: " + baseRef);
+        }
+        // where the workspace is in the repository, as git paths are relative to its top
+        final String prefix = git(workspace, "rev-parse", "--show-prefix");
+        if (prefix == null) {
+            throw new IOException("Not in a git repository: " + workspace);
+        }
+        final Map<String, int[]> changed = changedLines(workspace);
+        final String[] roots = {
+            workspace.getAbsolutePath().replace('\\', '/') + "/",
+            workspace.getCanonicalPath().replace('\\', '/') + "/"
+        };
+        final PathMatcher excluded = PathMatcher.parse(excludes);
+
+        List<LineCoverageReport> browsers = new ArrayList<LineCoverageReport>();
+        DirectoryScanner ds = Util.createFileSet(workspace, lcovIncludes).getDirectoryScanner();
+        for (String name : ds.getIncludedFiles()) {
+            InputStream in = new FileInputStream(new File(workspace, name));
+            try {
+                browsers.add(LcovParser.parse(in, new LcovParser.Filter() {
+                    public boolean accept(String path) {
+                        return find(changed, prefix, roots, path) != null && excluded.accept(path);
+                    }
+                }));
+            } finally {
+                in.close();
+            }
+        }
+
+        Result r = new Result();
+        for (FileCoverage f : LineCoverageReport.union(browsers).getFiles()) {
+            String path = find(changed, prefix, roots, f.getPath());
+            int[] intervals = changed.get(path);
+            for (int i = 0; i < intervals.length; i += 2) {
+                r.add(path, f, intervals[i], intervals[i + 1]);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Finds the changed file an lcov source path refers to.
+     *
+     * lcov paths are absolute or relative to the workspace, git paths are relative
+     * to the top of the repository. Only the workspace is dropped and replaced with
+     * its place in the repository, so a file outside the workspace matches nothing.
+     *
+     * @param prefix
+     *      path of the workspace in the repository, empty or with a trailing slash.
+     * @param roots
+     *      paths of the workspace, with a trailing slash.
+     */
+    static String find(Map<String, int[]> changed, String prefix, String[] roots, String path) {
+        path = path.replace('\\', '/');
+        if (path.startsWith("/") || (path.length() > 1 && path.charAt(1) == ':')) {
+            String relative = null;
+            for (String root : roots) {
+                if (path.startsWith(root)) {
+                    relative = path.substring(root.length());
+                    break;
+                }
+            }
+            if (relative == null) {
+                return null;
+            }
+            path = relative;
+        } else if (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+        path = prefix + path;
+        return changed.containsKey(path) ? path : null;
+    }
+
+    /**
+     * Runs a git command that prints one line.
+     *
+     * @return the line, or null if git failed.
+     */
+    private static String git(File workspace, String... args) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add("git");
+        cmd.addAll(Arrays.asList(args));
+        Process p = new ProcessBuilder(cmd).directory(workspace).start();
+        p.getOutputStream().close();
+        try {
+            String out = IOUtils.toString(p.getInputStream(), "UTF-8").trim();
+            return p.waitFor() == 0 ? out : null;
+        } finally {
+            IOUtils.closeQuietly(p.getInputStream());
+            IOUtils.closeQuietly(p.getErrorStream());
+            p.destroy();
+        }
+    }
+
+    /**
+     * Runs git diff and collects the changed lines of each file, as [start, end] pairs.
+     */
+    private Map<String, int[]> changedLines(File workspace) throws IOException, InterruptedException {
+        Process p = new ProcessBuilder("git", "-c", "core.quotePath=false", "diff", "--no-color", "--no-ext-diff", "--unified=0", baseRef + "...HEAD", "--")
+                .directory(workspace).redirectErrorStream(true).start();
+        p.getOutputStream().close();
+        try {
+            Map<String, int[]> changed = parseDiff(p.getInputStream());
+            int exit = p.waitFor();
+            if (exit != 0) {
+                throw new IOException("git diff against " + baseRef + " failed with exit code " + exit);
+            }
+            return changed;
+        } finally {
+            IOUtils.closeQuietly(p.getInputStream());
+            p.destroy();
+        }
+    }
+
+    /**
+     * Parses unified diff output with no context lines into intervals of added
+     * or modified lines per file. The lines of each hunk are skipped by count, so
+     * a changed line that reads like a file header is not taken for one.
+     */
+    static Map<String, int[]> parseDiff(InputStream in) throws IOException {
+        Map<String, int[]> changed = new HashMap<String, int[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String file = null;
+        int[] intervals = new int[16];
+        int n = 0;
+        // lines left in the current hunk
+        int body = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (body > 0) {
+                if (line.startsWith("-") || line.startsWith("+")) {
+                    body--;
+                }
+                // anything else is a "\ No newline at end of file" marker
+                continue;
+            }
+            if (line.startsWith("+++ ")) {
+                if (file != null && n > 0) {
+                    changed.put(file, Arrays.copyOf(intervals, n));
+                }
+                file = path(line.substring(4));
+                n = 0;
+            } else if (line.startsWith("@@ ")) {
+                // @@ -a[,b] +c[,d] @@
+                int plus = line.indexOf('+', 3);
+                int end = line.indexOf(' ', plus);
+                if (plus < 0 || end < 0) continue;
+                String range = line.substring(plus + 1, end);
+                int comma = range.indexOf(',');
+                try {
+                    int start = Integer.parseInt(comma < 0 ? range : range.substring(0, comma));
+                    int count = comma < 0 ? 1 : Integer.parseInt(range.substring(comma + 1));
+                    body = count + removed(line.substring(3, plus).trim());
+                    if (count == 0 || file == null) continue; // pure deletion, or deleted file
+                    if (n + 2 > intervals.length) {
+                        intervals = Arrays.copyOf(intervals, intervals.length * 2);
+                    }
+                    intervals[n++] = start;
+                    intervals[n++] = start + count - 1;
+                } catch (NumberFormatException e) {
+                    throw new IOException2("Unexpected hunk header: " + line, e);
+                }
+            }
+        }
+        if (file != null && n > 0) {
+            changed.put(file, Arrays.copyOf(intervals, n));
+        }
+        return changed;
+    }
+
+    /**
+     * Gets the changed file of a <tt>+++</tt> header, or null for a deleted file.
+     * git quotes names with special characters C style, and ends names with
+     * spaces with a tab.
+     */
+    static String path(String name) throws IOException {
+        if (name.endsWith("\t")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (name.startsWith("\"") && name.endsWith("\"") && name.length() > 1) {
+            name = unquote(name.substring(1, name.length() - 1));
+        }
+        return name.startsWith("b/") ? name.substring(2) : null;
+    }
+
+    /**
+     * Undoes git's C style quoting; octal escapes are bytes of the UTF-8 name.
+     */
+    private static String unquote(String s) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                out.write(String.valueOf(c).getBytes("UTF-8"));
+                continue;
+            }
+            c = s.charAt(++i);
+            if (c >= '0' && c <= '7' && i + 2 < s.length()) {
+                out.write(Integer.parseInt(s.substring(i, i + 3), 8));
+                i += 2;
+                continue;
+            }
+            switch (c) {
+            case 'a': out.write(7); break;
+            case 'b': out.write('\b'); break;
+            case 't': out.write('\t'); break;
+            case 'n': out.write('\n'); break;
+            case 'v': out.write(11); break;
+            case 'f': out.write('\f'); break;
+            case 'r': out.write('\r'); break;
+            default: out.write(c);
+            }
+        }
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Gets the number of lines removed by a hunk from its old range, "-a[,b]".
+     */
+    private static int removed(String range) {
+        int comma = range.indexOf(',');
+        return comma < 0 ? 1 : Integer.parseInt(range.substring(comma + 1));
+    }
+
+    /**
+     * Coverage of the changed lines.
+     */
+    public static final class Result implements Serializable {
+        /**
+         * Maximum number of uncovered hunks sent back.
+         */
+        private static final int MAX_HUNKS = 100;
+
+        private int covered;
+        private int total;
+        private final List<Hunk> uncovered = new ArrayList<Hunk>();
+
+        public Ratio getCoverage() {
+            return new Ratio(covered, total);
+        }
+
+        /**
+         * Gets the runs of changed lines that no test executed.
+         */
+        public List<Hunk> getUncovered() {
+            return uncovered;
+        }
+
+        /**
+         * Adds the instrumented lines of a changed interval.
+         */
+        void add(String path, FileCoverage f, int start, int end) {
+            BitSet lines = f.lines;
+            int from = -1, to = -1;
+            for (int l = lines.nextSetBit(start); l >= 0 && l <= end; l = lines.nextSetBit(l + 1)) {
+                total++;
+                if (f.isCovered(l)) {
+                    covered++;
+                    addHunk(path, from, to);
+                    from = -1;
+                } else {
+                    if (from < 0) from = l;
+                    to = l;
+                }
+            }
+            addHunk(path, from, to);
+        }
+
+        private void addHunk(String path, int from, int to) {
+            if (from >= 0 && uncovered.size() < MAX_HUNKS) {
+                uncovered.add(new Hunk(path, from, to));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A run of changed lines in a file.
+     */
+    public static final class Hunk implements Serializable {
+        private final String path;
+        private final int start;
+        private final int end;
+
+        public Hunk(String path, int start, int end) {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
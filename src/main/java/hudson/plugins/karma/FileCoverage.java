@@ -0,0 +1,168 @@
+package hudson.plugins.karma;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Line level coverage of one source file, as bitsets.
+ *
+ * <p>
+ * Lines are indexed by line number. Functions and branches are indexed by the
+ * order they appear in the report, which is the same in every browser since
+ * they all run the same instrumented sources. This makes combining the reports
+ * of several browsers a handful of word-wide bitwise operations per file.
+ *
+ * @see LineCoverageReport
+ */
+public final class FileCoverage {
+    private final String path;
+
+    /**
+     * Instrumented lines, and the ones that were hit.
+     */
+    final BitSet lines = new BitSet();
+    final BitSet coveredLines = new BitSet();
+
+    int functions;
+    final BitSet coveredFunctions = new BitSet();
+
+    int branches;
+    final BitSet coveredBranches = new BitSet();
+
+    /**
+     * Hit counts of the instrumented lines, as parallel arrays sorted by line.
+     */
+    private int[] hitLines = new int[16];
+    private int[] hitCounts = new int[16];
+    private int hitSize;
+
+    public FileCoverage(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getLineCount() {
+        return lines.cardinality();
+    }
+
+    public int getCoveredLineCount() {
+        return coveredLines.cardinality();
+    }
+
+    public int getFunctionCount() {
+        return functions;
+    }
+
+    public int getCoveredFunctionCount() {
+        return coveredFunctions.cardinality();
+    }
+
+    public int getBranchCount() {
+        return branches;
+    }
+
+    public int getCoveredBranchCount() {
+        return coveredBranches.cardinality();
+    }
+
+    public boolean isCovered(int line) {
+        return coveredLines.get(line);
+    }
+
+    /**
+     * Number of instrumented lines with a known hit count.
+     */
+    int getHitSize() {
+        return hitSize;
+    }
+
+    int getHitLine(int i) {
+        return hitLines[i];
+    }
+
+    int getHitCount(int i) {
+        return hitCounts[i];
+    }
+
+    /**
+     * Records hits of an instrumented line. Hits of a line seen before are added up.
+     */
+    void hit(int line, int count) {
+        lines.set(line);
+        if (count > 0) {
+            coveredLines.set(line);
+        }
+        int i = hitSize;
+        if (hitSize > 0 && line <= hitLines[hitSize - 1]) {
+            // reports list lines in order, so this is rare
+            i = Arrays.binarySearch(hitLines, 0, hitSize, line);
+            if (i >= 0) {
+                hitCounts[i] = add(hitCounts[i], count);
+                return;
+            }
+            i = -i - 1;
+        }
+        if (hitSize == hitLines.length) {
+            hitLines = Arrays.copyOf(hitLines, hitSize * 2);
+            hitCounts = Arrays.copyOf(hitCounts, hitSize * 2);
+        }
+        System.arraycopy(hitLines, i, hitLines, i + 1, hitSize - i);
+        System.arraycopy(hitCounts, i, hitCounts, i + 1, hitSize - i);
+        hitLines[i] = line;
+        hitCounts[i] = count;
+        hitSize++;
+    }
+
+    private static int add(int a, int b) {
+        long sum = (long) a + b;
+        return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) sum;
+    }
+
+    /**
+     * Marks everything covered in the other file as covered here too.
+     * Hit counts are added up.
+     */
+    void or(FileCoverage o) {
+        for (int i = 0; i < o.hitSize; i++) {
+            hit(o.hitLines[i], o.hitCounts[i]);
+        }
+        lines.or(o.lines);
+        coveredLines.or(o.coveredLines);
+        functions = Math.max(functions, o.functions);
+        coveredFunctions.or(o.coveredFunctions);
+        branches = Math.max(branches, o.branches);
+        coveredBranches.or(o.coveredBranches);
+    }
+
+    /**
+     * Keeps only what is covered in both files. Hit counts are dropped.
+     */
+    void and(FileCoverage o) {
+        hitSize = 0;
+        lines.or(o.lines);
+        coveredLines.and(o.coveredLines);
+        functions = Math.max(functions, o.functions);
+        coveredFunctions.and(o.coveredFunctions);
+        branches = Math.max(branches, o.branches);
+        coveredBranches.and(o.coveredBranches);
+    }
+
+    /**
+     * Forgets all hits, keeping the instrumented lines, functions and branches.
+     */
+    void clearCovered() {
+        hitSize = 0;
+        coveredLines.clear();
+        coveredFunctions.clear();
+        coveredBranches.clear();
+    }
+
+    FileCoverage copy() {
+        FileCoverage c = new FileCoverage(path);
+        c.or(this);
+        return c;
+    }
+}
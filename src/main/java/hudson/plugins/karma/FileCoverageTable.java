@@ -0,0 +1,247 @@
+package hudson.plugins.karma;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Per-file coverage counters of a build, one column per counter, with the rows
+ * sorted by a 64-bit hash of the file path.
+ *
+ * <p>
+ * Sorting by hash lets two builds be compared with a single merge join over
+ * the hash columns, and lets the counters be read back without the paths.
+ * The table is stored in the build's <tt>karma</tt> folder:
+ * <pre>
+ * "KFC1", int rows
+ * long hashes[rows]
+ * for each metric: int covered[rows], int total[rows]
+ * UTF paths[rows]
+ * </pre>
+ */
+public final class FileCoverageTable {
+
+    /**
+     * Name of the table inside the build's <tt>karma</tt> folder.
+     */
+    public static final String FILE_NAME = "files.dat";
+
+    /**
+     * Metrics, as column indexes.
+     */
+    public static final int LINES = 0, FUNCTIONS = 1, BRANCHES = 2;
+    static final int METRICS = 3;
+
+    private static final int MAGIC = 0x4b464331; // KFC1
+
+    private final long[] hashes;
+    private final int[][] covered;
+    private final int[][] total;
+
+    /**
+     * Null when the table was read without its paths.
+     */
+    private final String[] paths;
+
+    private FileCoverageTable(long[] hashes, int[][] covered, int[][] total, String[] paths) {
+        this.hashes = hashes;
+        this.covered = covered;
+        this.total = total;
+        this.paths = paths;
+    }
+
+    public int size() {
+        return hashes.length;
+    }
+
+    public long getHash(int row) {
+        return hashes[row];
+    }
+
+    public String getPath(int row) {
+        return paths == null ? null : paths[row];
+    }
+
+    public int getCovered(int metric, int row) {
+        return covered[metric][row];
+    }
+
+    public int getTotal(int metric, int row) {
+        return total[metric][row];
+    }
+
+    /**
+     * Hash of a file path: 64-bit FNV-1a over its characters.
+     */
+    public static long hash(String path) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            h ^= path.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Builds the table of the given files.
+     */
+    public static FileCoverageTable of(Collection<FileCoverage> files) {
+        final FileCoverage[] rows = files.toArray(new FileCoverage[files.size()]);
+        final long[] keys = new long[rows.length];
+        Integer[] order = new Integer[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            keys[i] = hash(rows[i].getPath());
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return keys[a] < keys[b] ? -1 : keys[a] == keys[b] ? 0 : 1;
+            }
+        });
+
+        int n = rows.length;
+        long[] hashes = new long[n];
+        int[][] covered = new int[METRICS][n];
+        int[][] total = new int[METRICS][n];
+        String[] paths = new String[n];
+        for (int i = 0; i < n; i++) {
+            FileCoverage f = rows[order[i]];
+            hashes[i] = keys[order[i]];
+            paths[i] = f.getPath();
+            covered[LINES][i] = f.getCoveredLineCount();
+            total[LINES][i] = f.getLineCount();
+            covered[FUNCTIONS][i] = f.getCoveredFunctionCount();
+            total[FUNCTIONS][i] = f.getFunctionCount();
+            covered[BRANCHES][i] = f.getCoveredBranchCount();
+            total[BRANCHES][i] = f.getBranchCount();
+        }
+        return new FileCoverageTable(hashes, covered, total, paths);
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(hashes.length);
+            for (long h : hashes) {
+                out.writeLong(h);
+            }
+            for (int m = 0; m < METRICS; m++) {
+                for (int c : covered[m]) out.writeInt(c);
+                for (int t : total[m]) out.writeInt(t);
+            }
+            for (String p : paths) {
+                out.writeUTF(p);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a table.
+     *
+     * @param withPaths
+     *      whether to read the paths too. Comparing builds only needs the hashes.
+     * @return null if there is no table.
+     */
+    public static FileCoverageTable read(File file, boolean withPaths) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a file coverage table: " + file);
+            }
+            int n = in.readInt();
+            long[] hashes = new long[n];
+            for (int i = 0; i < n; i++) {
+                hashes[i] = in.readLong();
+            }
+            int[][] covered = new int[METRICS][n];
+            int[][] total = new int[METRICS][n];
+            for (int m = 0; m < METRICS; m++) {
+                for (int i = 0; i < n; i++) covered[m][i] = in.readInt();
+                for (int i = 0; i < n; i++) total[m][i] = in.readInt();
+            }
+            String[] paths = null;
+            if (withPaths) {
+                paths = new String[n];
+                for (int i = 0; i < n; i++) {
+                    paths[i] = in.readUTF();
+                }
+            }
+            return new FileCoverageTable(hashes, covered, total, paths);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finds the files whose line coverage dropped the most since the previous build.
+     *
+     * <p>
+     * Both tables are sorted by hash, so this is a single linear merge join.
+     * Only the current table needs its paths.
+     *
+     * @param limit
+     *      maximum number of regressions to return.
+     * @return the regressions, worst first.
+     */
+    public static List<FileDelta> regressions(FileCoverageTable previous, FileCoverageTable current, int limit) {
+        FileDelta[] worst = new FileDelta[limit];
+        int found = 0;
+        int i = 0, j = 0;
+        while (i < previous.size() && j < current.size()) {
+            long a = previous.hashes[i], b = current.hashes[j];
+            if (a < b) {
+                i++;
+            } else if (a > b) {
+                j++;
+            } else {
+                int pc = previous.covered[LINES][i], pt = previous.total[LINES][i];
+                int cc = current.covered[LINES][j], ct = current.total[LINES][j];
+                // compare cc/ct < pc/pt without dividing
+                if ((long) cc * pt < (long) pc * ct) {
+                    FileDelta d = new FileDelta(current.getPath(j), pc, pt, cc, ct);
+                    found = insert(worst, found, d);
+                }
+                i++;
+                j++;
+            }
+        }
+        List<FileDelta> r = new ArrayList<FileDelta>(found);
+        for (int k = 0; k < found; k++) {
+            r.add(worst[k]);
+        }
+        return r;
+    }
+
+    /**
+     * Inserts a regression into the bounded list of the worst ones, kept sorted.
+     */
+    private static int insert(FileDelta[] worst, int size, FileDelta d) {
+        int k = size;
+        while (k > 0 && worst[k - 1].getChange() > d.getChange()) {
+            k--;
+        }
+        if (k == worst.length) {
+            return size;
+        }
+        int n = Math.min(size, worst.length - 1);
+        System.arraycopy(worst, k, worst, k + 1, n - k);
+        worst[k] = d;
+        return Math.min(size + 1, worst.length);
+    }
+}
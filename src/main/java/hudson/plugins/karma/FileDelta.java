@@ -0,0 +1,47 @@
+package hudson.plugins.karma;
+
+import java.io.Serializable;
+
+/**
+ * Change of the line coverage of one source file between two builds.
+ */
+public final class FileDelta implements Serializable {
+    private final String path;
+    private final int previousCovered;
+    private final int previousTotal;
+    private final int covered;
+    private final int total;
+
+    public FileDelta(String path, int previousCovered, int previousTotal, int covered, int total) {
+        this.path = path;
+        this.previousCovered = previousCovered;
+        this.previousTotal = previousTotal;
+        this.covered = covered;
+        this.total = total;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Ratio getPreviousCoverage() {
+        return new Ratio(previousCovered, previousTotal);
+    }
+
+    public Ratio getCoverage() {
+        return new Ratio(covered, total);
+    }
+
+    /**
+     * Gets the change of the line coverage in percentage points, negative for a regression.
+     */
+    public float getChange() {
+        return percentage(covered, total) - percentage(previousCovered, previousTotal);
+    }
+
+    private static float percentage(int covered, int total) {
+        return total <= 0 ? 0 : 100f * covered / total;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
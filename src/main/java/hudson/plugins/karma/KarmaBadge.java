@@ -0,0 +1,229 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * SVG coverage badges of projects, served at <tt>/job/name/karma/badge</tt>.
+ *
+ * <p>
+ * Badges are rendered once per project, metric and colour thresholds, and the
+ * last {@value #MAX_BADGES} used are kept as bytes until a newer build records coverage. The last coverage of each
+ * project is looked up once and then followed through
+ * {@link KarmaCoverageListener}, so serving a badge does not touch any build.
+ *
+ * <p>
+ * Query parameters: <tt>metric</tt>, one of <tt>line</tt> (the default),
+ * <tt>statement</tt>, <tt>function</tt> and <tt>branch</tt>, and <tt>min</tt>
+ * and <tt>max</tt> to override the health thresholds of the project, below
+ * which the badge is red and from which it is green, between 0 and 100.
+ */
+@Extension
+public final class KarmaBadge extends KarmaCoverageListener {
+
+    /**
+     * Names of the metrics, by their index in {@link KarmaCoverageObject#counts}.
+     */
+    static final String[] METRICS = { "line", "statement", "function", "branch" };
+
+    /**
+     * Number of badges kept per project, for the metrics and thresholds asked for last.
+     */
+    static final int MAX_BADGES = 16;
+
+    private static final String GREEN = "#4c1", YELLOW = "#dfb317", RED = "#e05d44", GREY = "#9f9f9f";
+
+    private final Map<AbstractProject<?,?>, Last> last = new WeakHashMap<AbstractProject<?,?>, Last>();
+
+    public static KarmaBadge get() {
+        return all().get(KarmaBadge.class);
+    }
+
+    /**
+     * Last coverage of a project and the badges rendered from it.
+     */
+    private static final class Last {
+        final int number;
+        /**
+         * Packed as in {@link KarmaCoverageObject#counts}, or null if the project has no coverage yet.
+         */
+        final long[] counts;
+        final Map<String, Svg> badges = new LinkedHashMap<String, Svg>(MAX_BADGES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Svg> eldest) {
+                return size() > MAX_BADGES;
+            }
+        };
+
+        Last(int number, long[] counts) {
+            this.number = number;
+            this.counts = counts;
+        }
+    }
+
+    private static final class Svg {
+        final byte[] bytes;
+        final String etag;
+
+        Svg(byte[] bytes, String etag) {
+            this.bytes = bytes;
+            this.etag = etag;
+        }
+    }
+
+    @Override
+    public void onCompleted(AbstractBuild<?,?> build, KarmaBuildAction action) {
+        if (build.getResult() == Result.FAILURE) {
+            // not shown, like KarmaProjectAction.getLastResult()
+            return;
+        }
+        synchronized (this) {
+            Last l = last.get(build.getProject());
+            if (l == null || l.number <= build.getNumber()) {
+                last.put(build.getProject(), new Last(build.getNumber(), action.counts));
+            }
+        }
+    }
+
+    void serve(KarmaProjectAction project, StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String metric = Util.fixEmpty(req.getParameter("metric"));
+        int m = metric == null ? 0 : indexOf(metric);
+        if (m < 0) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Unknown metric: " + metric);
+            return;
+        }
+        int[] thresholds = thresholds(project.project, m);
+        try {
+            if (req.getParameter("min") != null) {
+                thresholds[0] = Integer.parseInt(req.getParameter("min"));
+            }
+            if (req.getParameter("max") != null) {
+                thresholds[1] = Integer.parseInt(req.getParameter("max"));
+            }
+        } catch (NumberFormatException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Not a number: " + e.getMessage());
+            return;
+        }
+        thresholds[0] = Math.max(0, Math.min(100, thresholds[0]));
+        thresholds[1] = Math.max(0, Math.min(100, thresholds[1]));
+
+        Svg svg = getBadge(project, m, thresholds[0], thresholds[1]);
+        rsp.setHeader("ETag", svg.etag);
+        rsp.setHeader("Cache-Control", "public, max-age=60");
+        if (svg.etag.equals(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(StaplerResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        rsp.setContentType("image/svg+xml;charset=utf-8");
+        rsp.setContentLength(svg.bytes.length);
+        OutputStream out = rsp.getOutputStream();
+        out.write(svg.bytes);
+        out.flush();
+    }
+
+    private Svg getBadge(KarmaProjectAction project, int metric, int min, int max) {
+        Last l;
+        synchronized (this) {
+            l = last.get(project.project);
+        }
+        if (l == null) {
+            // may load builds, so not under the lock every badge request takes
+            KarmaBuildAction a = project.getLastResult();
+            Last read = a == null ? new Last(0, null) : new Last(a.getBuild().getNumber(), a.counts);
+            synchronized (this) {
+                l = last.get(project.project);
+                if (l == null || l.number < read.number) {
+                    // unless a build completed meanwhile
+                    last.put(project.project, l = read);
+                }
+            }
+        }
+        String key = metric + ":" + min + ":" + max;
+        synchronized (this) {
+            Svg svg = l.badges.get(key);
+            if (svg == null) {
+                byte[] bytes = render(METRICS[metric], l.counts, metric, min, max);
+                svg = new Svg(bytes, "\"" + l.number + "-" + key.replace(':', '-') + "-" + Integer.toHexString(Arrays.hashCode(bytes)) + "\"");
+                l.badges.put(key, svg);
+            }
+            return svg;
+        }
+    }
+
+    static int indexOf(String metric) {
+        for (int i = 0; i < METRICS.length; i++) {
+            if (METRICS[i].equals(metric)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the health thresholds of the project for the given metric, as min and max.
+     */
+    private static int[] thresholds(AbstractProject<?,?> project, int metric) {
+        KarmaPublisher p = project.getPublishersList().get(KarmaPublisher.class);
+        KarmaHealthReportThresholds t = p == null || p.healthReports == null ? new KarmaHealthReportThresholds() : p.healthReports;
+        switch (metric) {
+        case KarmaCoverageObject.LINE:
+            return new int[] { t.getMinLine(), t.getMaxLine() };
+        case KarmaCoverageObject.STATEMENT:
+            return new int[] { t.getMinStatement(), t.getMaxStatement() };
+        case KarmaCoverageObject.FUNCTION:
+            return new int[] { t.getMinFunction(), t.getMaxFunction() };
+        default:
+            return new int[] { t.getMinBranch(), t.getMaxBranch() };
+        }
+    }
+
+    /**
+     * Draws a flat badge, with the text widths estimated from the average width of Verdana 11px.
+     */
+    static byte[] render(String label, long[] counts, int metric, int min, int max) {
+        String value, colour;
+        if (counts == null || counts[2 * metric + 1] == Ratio.UNSET) {
+            value = "unknown";
+            colour = GREY;
+        } else {
+            float p = Ratio.percentage(counts[2 * metric], counts[2 * metric + 1]);
+            value = Math.round(p) + "%";
+            colour = p >= max ? GREEN : p >= min ? YELLOW : RED;
+        }
+        label = label + " coverage";
+        int lw = 10 + label.length() * 7 - label.length() / 2;
+        int vw = 10 + value.length() * 7;
+        int w = lw + vw;
+        StringBuilder b = new StringBuilder(700);
+        b.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(w).append("\" height=\"20\">")
+         .append("<linearGradient id=\"s\" x2=\"0\" y2=\"100%\"><stop offset=\"0\" stop-color=\"#bbb\" stop-opacity=\".1\"/><stop offset=\"1\" stop-opacity=\".1\"/></linearGradient>")
+         .append("<clipPath id=\"r\"><rect width=\"").append(w).append("\" height=\"20\" rx=\"3\" fill=\"#fff\"/></clipPath>")
+         .append("<g clip-path=\"url(#r)\"><rect width=\"").append(lw).append("\" height=\"20\" fill=\"#555\"/>")
+         .append("<rect x=\"").append(lw).append("\" width=\"").append(vw).append("\" height=\"20\" fill=\"").append(colour).append("\"/>")
+         .append("<rect width=\"").append(w).append("\" height=\"20\" fill=\"url(#s)\"/></g>")
+         .append("<g fill=\"#fff\" text-anchor=\"middle\" font-family=\"Verdana,Geneva,DejaVu Sans,sans-serif\" font-size=\"11\">")
+         .append("<text x=\"").append(lw / 2).append("\" y=\"15\" fill=\"#010101\" fill-opacity=\".3\">").append(label).append("</text>")
+         .append("<text x=\"").append(lw / 2).append("\" y=\"14\">").append(label).append("</text>")
+         .append("<text x=\"").append(lw + vw / 2).append("\" y=\"15\" fill=\"#010101\" fill-opacity=\".3\">").append(value).append("</text>")
+         .append("<text x=\"").append(lw + vw / 2).append("\" y=\"14\">").append(value).append("</text></g></svg>");
+        try {
+            return b.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
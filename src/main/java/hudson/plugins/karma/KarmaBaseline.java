@@ -0,0 +1,237 @@
+package hudson.plugins.karma;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coverage of the target branch of a pull request, as it was when the pull
+ * request build recorded its own, to compare them.
+ *
+ * <p>
+ * Pull request jobs have a short history, so their previous build says little.
+ * Builds of multibranch projects get the target branch in <tt>CHANGE_TARGET</tt>,
+ * whose job is a sibling named after the branch. The last build of each branch
+ * job that recorded coverage is followed through {@link KarmaCoverageListener},
+ * and looked up once from its {@link KarmaIndex} before that, so finding the
+ * baseline of a pull request loads a single build whatever the number of
+ * pull requests or builds.
+ */
+public final class KarmaBaseline {
+
+    /**
+     * Environment variable holding the target branch of a pull request build.
+     */
+    public static final String CHANGE_TARGET = "CHANGE_TARGET";
+
+    /**
+     * Number of the last build that recorded coverage, by job, or 0 if none did.
+     */
+    private static final Map<Job<?,?>, Integer> LATEST = new WeakHashMap<Job<?,?>, Integer>();
+
+    private final String job;
+    private final int number;
+
+    /**
+     * Packed as in {@link KarmaCoverageObject#counts}.
+     */
+    final long[] counts;
+
+    KarmaBaseline(String job, int number, long[] counts) {
+        this.job = job;
+        this.number = number;
+        this.counts = counts;
+    }
+
+    /**
+     * Full name of the target branch job.
+     */
+    public String getJob() {
+        return job;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * Gets the URL of the baseline build, relative to the root, or null if its job is gone.
+     */
+    public String getUrl() {
+        Job<?,?> j = Jenkins.getInstance().getItemByFullName(job, Job.class);
+        return j == null ? null : j.getUrl() + number + "/";
+    }
+
+    /**
+     * Gets the four metrics of both builds that were recorded by both.
+     *
+     * @param current
+     *      counts of the pull request build, packed as {@link #counts}.
+     */
+    public List<Row> getRows(long[] current) {
+        List<Row> rows = new ArrayList<Row>();
+        for (int i = 0; i < KarmaBadge.METRICS.length; i++) {
+            Ratio before = Ratio.unpack(counts, i);
+            Ratio after = Ratio.unpack(current, i);
+            if (before != null && after != null) {
+                rows.add(new Row(KarmaBadge.METRICS[i], before, after));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * One metric of the target branch and of the pull request.
+     */
+    public static final class Row {
+        private final String metric;
+        private final Ratio baseline, coverage;
+
+        Row(String metric, Ratio baseline, Ratio coverage) {
+            this.metric = metric;
+            this.baseline = baseline;
+            this.coverage = coverage;
+        }
+
+        public String getMetric() {
+            return metric;
+        }
+
+        public Ratio getBaseline() {
+            return baseline;
+        }
+
+        public Ratio getCoverage() {
+            return coverage;
+        }
+
+        /**
+         * Percentage points gained over the target branch.
+         */
+        public float getChange() {
+            return coverage.getPercentageFloat() - baseline.getPercentageFloat();
+        }
+    }
+
+    /**
+     * Finds the last coverage of the target branch of a pull request build.
+     *
+     * @return null if the build is not for a pull request, or its target branch has no coverage.
+     */
+    static Resolved resolve(AbstractBuild<?,?> build, EnvVars env) {
+        String target = Util.fixEmptyAndTrim(env.get(CHANGE_TARGET));
+        if (target == null) {
+            return null;
+        }
+        ItemGroup<?> parent = build.getParent().getParent();
+        Item item = parent.getItem(target);
+        if (!(item instanceof Job)) {
+            // branch jobs are named after the encoded branch
+            item = parent.getItem(Util.rawEncode(target));
+        }
+        if (!(item instanceof Job) || item == build.getParent()) {
+            return null;
+        }
+        Job<?,?> job = (Job<?,?>) item;
+        Run<?,?> run = latest(job);
+        if (!(run instanceof AbstractBuild)) {
+            return null;
+        }
+        KarmaBuildAction a = KarmaBuildAction.of((AbstractBuild<?,?>) run);
+        if (a == null) {
+            return null;
+        }
+        return new Resolved((AbstractBuild<?,?>) run, new KarmaBaseline(job.getFullName(), run.getNumber(), a.counts.clone()));
+    }
+
+    /**
+     * Baseline and the build it was taken from, to read its per-file coverage.
+     */
+    static final class Resolved {
+        final AbstractBuild<?,?> build;
+        final KarmaBaseline baseline;
+
+        Resolved(AbstractBuild<?,?> build, KarmaBaseline baseline) {
+            this.build = build;
+            this.baseline = baseline;
+        }
+    }
+
+    /**
+     * Gets the last build of a job that recorded coverage and did not fail.
+     */
+    private static Run<?,?> latest(Job<?,?> job) {
+        Integer n;
+        synchronized (LATEST) {
+            n = LATEST.get(job);
+        }
+        if (n != null && n > 0) {
+            Run<?,?> run = job.getBuildByNumber(n);
+            if (run != null) {
+                return run;
+            }
+            // deleted since: look it up again
+            synchronized (LATEST) {
+                LATEST.remove(job);
+            }
+        } else if (n != null) {
+            return null;
+        }
+        n = 0;
+        try {
+            List<KarmaIndex.Record> records = KarmaIndex.of(job).read(Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+            for (int i = records.size() - 1; i >= 0; i--) {
+                if (records.get(i).result != Result.FAILURE) {
+                    n = records.get(i).number;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the coverage index of " + job, e);
+        }
+        synchronized (LATEST) {
+            Integer m = LATEST.get(job);
+            if (m == null || m < n) {
+                LATEST.put(job, n);
+            }
+        }
+        return n > 0 ? job.getBuildByNumber(n) : null;
+    }
+
+    /**
+     * Moves the pointer of a job to each of its builds that recorded coverage, as they complete.
+     */
+    @Extension
+    public static final class Listener extends KarmaCoverageListener {
+        @Override
+        public void onCompleted(AbstractBuild<?,?> build, KarmaBuildAction action) {
+            if (build.getResult() == Result.FAILURE) {
+                return;
+            }
+            synchronized (LATEST) {
+                Integer n = LATEST.get(build.getParent());
+                if (n != null && n < build.getNumber()) {
+                    // jobs that were never looked up are left alone
+                    LATEST.put(build.getParent(), build.getNumber());
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KarmaBaseline.class.getName());
+}
@@ -1,13 +1,26 @@
 package hudson.plugins.karma;
 
 import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.model.Action;
 import hudson.model.AbstractBuild;
 import hudson.model.HealthReport;
 import hudson.model.HealthReportingAction;
 import hudson.model.Result;
+import hudson.model.Run;
 import hudson.util.IOException2;
 import hudson.util.NullStream;
+import hudson.util.RobustReflectionConverter;
 import hudson.util.StreamTaskListener;
+import hudson.util.XStream2;
+import jenkins.model.RunAction2;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.core.JVM;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 
 import org.jvnet.localizer.Localizable;
 import org.kohsuke.stapler.StaplerProxy;
@@ -22,8 +35,13 @@ import java.io.OutputStream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,11 +50,38 @@ import java.util.logging.Logger;
  *
  * As {@link KarmaCoverageObject}, it retains the overall coverage report.
  *
+ * <p>
+ * The action is not kept in build.xml: {@link KarmaPublisher} records it in
+ * the <tt>karma</tt> folder of the build, and {@link KarmaBuildActionFactory}
+ * reads it back from there the first time someone asks the build for it, so
+ * that loading builds does not load their coverage.
+ *
  * @author Kohsuke Kawaguchi
  */
-public final class KarmaBuildAction extends KarmaCoverageObject<KarmaBuildAction> implements HealthReportingAction, StaplerProxy {
+public final class KarmaBuildAction extends KarmaCoverageObject<KarmaBuildAction> implements HealthReportingAction, StaplerProxy, RunAction2 {
 	
-    public final AbstractBuild<?,?> owner;
+    /**
+     * Set again when read back, since {@link ConverterImpl} does not record it.
+     * Use {@link #getBuild()} from outside.
+     */
+    private AbstractBuild<?,?> owner;
+
+    /**
+     * Actions read so far, softly held, or {@link Boolean#FALSE} for builds without a summary.
+     *
+     * <p>
+     * A cached action refers to its build, which is also the weak key, so an
+     * entry for a build with coverage stays until the collector clears the soft
+     * reference. The cache is thus bounded only by memory pressure, not by the
+     * builds Jenkins still holds.
+     */
+    private static final Map<AbstractBuild<?,?>, Object> LOADED = new WeakHashMap<AbstractBuild<?,?>, Object>();
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.alias("karma", KarmaBuildAction.class);
+    }
 
     private transient WeakReference<KarmaCoverageReport> report;
     
@@ -45,15 +90,88 @@ public final class KarmaBuildAction extends KarmaCoverageObject<KarmaBuildAction
      */
     private final KarmaHealthReportThresholds thresholds;
 
+    /**
+     * Source files whose coverage dropped the most since the previous build,
+     * or since the baseline if there is one. Can be null.
+     */
+    private List<FileDelta> regressions;
+
+    /**
+     * Coverage of the target branch, for pull request builds. Can be null.
+     */
+    private KarmaBaseline baseline;
+
+    /**
+     * Coverage of the lines changed since the configured base revision. Can be null.
+     */
+    private DiffCoverage.Result diffCoverage;
+
     public KarmaBuildAction(AbstractBuild<?,?> owner, Rule rule, Ratio lineCoverage, Ratio statementCoverage, Ratio functionCoverage, Ratio branchCoverage, KarmaHealthReportThresholds thresholds) {
         this.owner = owner;
-        this.line = lineCoverage;
-        this.statement = statementCoverage;
-        this.function = functionCoverage;
-        this.branch = branchCoverage;
+        set(LINE, lineCoverage);
+        set(STATEMENT, statementCoverage);
+        set(FUNCTION, functionCoverage);
+        set(BRANCH, branchCoverage);
         this.thresholds = thresholds;
     }
 
+    /**
+     * Builds recorded before the counts were packed hold four {@link Ratio} fields.
+     */
+    private Object readResolve() {
+        migrate();
+        return this;
+    }
+
+    /**
+     * Gets the source files whose line coverage dropped the most since the previous build, worst first.
+     */
+    public List<FileDelta> getRegressions() {
+        if (regressions == null) {
+            return Collections.emptyList();
+        }
+        return regressions;
+    }
+
+    /*package*/ void setRegressions(List<FileDelta> regressions) {
+        this.regressions = regressions;
+    }
+
+    /**
+     * Gets the coverage of the lines changed since the configured base revision.
+     *
+     * @return null if diff coverage was not computed for this build.
+     */
+    public DiffCoverage.Result getDiffCoverage() {
+        return diffCoverage;
+    }
+
+    /*package*/ void setDiffCoverage(DiffCoverage.Result diffCoverage) {
+        this.diffCoverage = diffCoverage;
+    }
+
+    /**
+     * Gets the coverage of the target branch this pull request build was compared with.
+     *
+     * @return null if this build is not for a pull request, or its target branch had no coverage.
+     */
+    public KarmaBaseline getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * Gets the metrics of this build next to those of the target branch.
+     *
+     * @return empty if there is no baseline.
+     */
+    public List<KarmaBaseline.Row> getBaselineRows() {
+        return baseline == null ? Collections.<KarmaBaseline.Row>emptyList() : baseline.getRows(counts);
+    }
+
+    /*package*/ void setBaseline(KarmaBaseline baseline) {
+        this.baseline = baseline;
+    }
+
     public String getDisplayName() {
         return Messages.KarmaBuildAction_DisplayName();
     }
@@ -73,12 +191,22 @@ public final class KarmaBuildAction extends KarmaCoverageObject<KarmaBuildAction
      * @since 1.7
      */
     public HealthReport getBuildHealth() {
+        long start = KarmaMetrics.BUILD_HEALTH.start();
+        try {
+            return createBuildHealth();
+        } finally {
+            KarmaMetrics.BUILD_HEALTH.stop(start);
+        }
+    }
+
+    private HealthReport createBuildHealth() {
         if (thresholds == null) {
             // no thresholds => no report
             return null;
         }
         thresholds.ensureValid();
         int score = 100, percent;
+        Ratio line = getCoverage(LINE), statement = getCoverage(STATEMENT), function = getCoverage(FUNCTION), branch = getCoverage(BRANCH);
         ArrayList<Localizable> reports = new ArrayList<Localizable>(5);
         if (line != null && thresholds.getMaxLine() > 0) {
             percent = line.getPercentage();
@@ -135,6 +263,79 @@ public final class KarmaBuildAction extends KarmaCoverageObject<KarmaBuildAction
         return getResult();
     }
 
+    public void onAttached(Run<?,?> r) {
+        owner = (AbstractBuild<?,?>) r;
+    }
+
+    public void onLoad(Run<?,?> r) {
+        owner = (AbstractBuild<?,?>) r;
+    }
+
+    /**
+     * Records this action in the <tt>karma</tt> folder of its build.
+     */
+    public void save() throws IOException {
+        getSummaryFile(owner).write(this);
+        synchronized (LOADED) {
+            LOADED.put(owner, new SoftReference<KarmaBuildAction>(this));
+        }
+    }
+
+    /**
+     * Gets the coverage of the given build, without going through the other transient actions.
+     *
+     * @return null if the build has no recorded coverage.
+     */
+    public static KarmaBuildAction of(AbstractBuild<?,?> build) {
+        // builds recorded before the summary was moved out of build.xml
+        for (Action a : build.getActions()) {
+            if (a instanceof KarmaBuildAction) {
+                return (KarmaBuildAction) a;
+            }
+        }
+        return load(build);
+    }
+
+    /**
+     * Gets the action recorded in the <tt>karma</tt> folder of the given build, reading it on first use.
+     *
+     * @return null if the build has no summary there.
+     */
+    @SuppressWarnings("unchecked")
+    static KarmaBuildAction load(AbstractBuild<?,?> build) {
+        synchronized (LOADED) {
+            Object o = LOADED.get(build);
+            if (o == Boolean.FALSE) {
+                return null;
+            }
+            if (o != null) {
+                KarmaBuildAction a = ((SoftReference<KarmaBuildAction>) o).get();
+                if (a != null) {
+                    return a;
+                }
+            }
+        }
+
+        KarmaBuildAction a = null;
+        XmlFile f = getSummaryFile(build);
+        if (f.exists()) {
+            try {
+                a = (KarmaBuildAction) f.read();
+                a.onLoad(build);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + f, e);
+            }
+        }
+        synchronized (LOADED) {
+            LOADED.put(build, a == null ? Boolean.FALSE : new SoftReference<KarmaBuildAction>(a));
+        }
+        return a;
+    }
+
+    private static XmlFile getSummaryFile(AbstractBuild<?,?> build) {
+        return new XmlFile(XSTREAM, new File(KarmaPublisher.getKarmaReport(build), SUMMARY_FILE));
+    }
+
     @Override
     public AbstractBuild<?,?> getBuild() {
         return owner;
@@ -196,7 +397,7 @@ public final class KarmaBuildAction extends KarmaCoverageObject<KarmaBuildAction
                 return null;
             if(b.getResult()== Result.FAILURE)
                 continue;
-            KarmaBuildAction r = b.getAction(KarmaBuildAction.class);
+            KarmaBuildAction r = KarmaBuildAction.of(b);
             if(r!=null)
                 return r;
         }
@@ -230,7 +431,7 @@ public final class KarmaBuildAction extends KarmaCoverageObject<KarmaBuildAction
         return new KarmaBuildAction(owner,rule,ratios[0],ratios[1],ratios[2],ratios[3],thresholds);
     }
     
-    private static Ratio[] loadRatios(InputStream in, Ratio[] r) throws IOException {
+    /*package*/ static Ratio[] loadRatios(InputStream in, Ratio[] r) throws IOException {
     	
     	if (r == null || r.length < 4) {
     		r = new Ratio[4];
@@ -252,23 +453,23 @@ public final class KarmaBuildAction extends KarmaCoverageObject<KarmaBuildAction
     				ratio = ratioFinder(line, firstParen + 1, secondParen);
 
     				String[] parts = ratio.split(" / ");
-    				int numerator = 0;
-    				int denominator = 0;
+    				long numerator = 0;
+    				long denominator = 0;
     				try {
-    					numerator = Integer.parseInt(parts[0]);
-    					denominator = Integer.parseInt(parts[1]);
+    					numerator = Long.parseLong(parts[0]);
+    					denominator = Long.parseLong(parts[1]);
     				} catch (NumberFormatException e) {
     					numerator = -1;
     					denominator = -1;
     				}
     				if (r[0] == null) {
-    					r[0] = new Ratio((float) numerator, (float) denominator);
+    					r[0] = new Ratio(numerator, denominator);
     				} else if (r[1] == null) {
-    					r[1] = new Ratio((float) numerator, (float) denominator);
+    					r[1] = new Ratio(numerator, denominator);
     				} else if (r[2] == null) {
-    					r[2] = new Ratio((float) numerator, (float) denominator);
+    					r[2] = new Ratio(numerator, denominator);
     				} else if (r[3] == null) {
-    					r[3] = new Ratio((float) numerator, (float) denominator);
+    					r[3] = new Ratio(numerator, denominator);
     					break;
     				}
     			}
@@ -292,4 +493,151 @@ public final class KarmaBuildAction extends KarmaCoverageObject<KarmaBuildAction
     	return ratio;
     }
 
+
+    /**
+     * Name of the file, in the <tt>karma</tt> folder of a build, the action is recorded in.
+     */
+    static final String SUMMARY_FILE = "summary.xml";
+
+    private static final Logger LOGGER = Logger.getLogger(KarmaBuildAction.class.getName());
+
+    /**
+     * Records the action as a single element:
+     * <pre>
+     * &lt;hudson.plugins.karma.KarmaBuildAction format="2" line="850/1000" statement="1700/2000"
+     *     function="150/200" branch="350/500" health="0,90,0,80,0,50,0,50" failed="true"/&gt;
+     * </pre>
+     * and reads it back without reflection. The owner is left out and set again on load;
+     * the rarely present regressions, diff coverage and baseline are nested elements.
+     * Builds recorded before this format are still read field by field.
+     */
+    public static final class ConverterImpl implements Converter {
+        private static final String FORMAT = "format";
+
+        private final RobustReflectionConverter ref;
+
+        public ConverterImpl(XStream2 xs) {
+            ref = new RobustReflectionConverter(xs.getMapper(), new JVM().bestReflectionProvider());
+        }
+
+        public boolean canConvert(Class type) {
+            return type == KarmaBuildAction.class;
+        }
+
+        public void marshal(Object source, HierarchicalStreamWriter w, MarshallingContext context) {
+            KarmaBuildAction a = (KarmaBuildAction) source;
+            w.addAttribute(FORMAT, "2");
+            writeRatio(w, "line", a.counts, LINE);
+            writeRatio(w, "statement", a.counts, STATEMENT);
+            writeRatio(w, "function", a.counts, FUNCTION);
+            writeRatio(w, "branch", a.counts, BRANCH);
+            KarmaHealthReportThresholds t = a.thresholds;
+            if (t != null) {
+                w.addAttribute("health", t.getMinLine() + "," + t.getMaxLine() + "," + t.getMinStatement() + "," + t.getMaxStatement()
+                        + "," + t.getMinFunction() + "," + t.getMaxFunction() + "," + t.getMinBranch() + "," + t.getMaxBranch());
+            }
+            if (a.isFailed()) {
+                w.addAttribute("failed", "true");
+            }
+            if (a.regressions != null) {
+                w.startNode("regressions");
+                // read back as an ArrayList, whatever list was set
+                context.convertAnother(new ArrayList<FileDelta>(a.regressions));
+                w.endNode();
+            }
+            if (a.diffCoverage != null) {
+                w.startNode("diffCoverage");
+                context.convertAnother(a.diffCoverage);
+                w.endNode();
+            }
+            if (a.baseline != null) {
+                w.startNode("baseline");
+                w.addAttribute("job", a.baseline.getJob());
+                w.addAttribute("number", String.valueOf(a.baseline.getNumber()));
+                writeRatio(w, "line", a.baseline.counts, LINE);
+                writeRatio(w, "statement", a.baseline.counts, STATEMENT);
+                writeRatio(w, "function", a.baseline.counts, FUNCTION);
+                writeRatio(w, "branch", a.baseline.counts, BRANCH);
+                w.endNode();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public Object unmarshal(HierarchicalStreamReader r, UnmarshallingContext context) {
+            if (r.getAttribute(FORMAT) == null) {
+                return ref.unmarshal(r, context);
+            }
+            KarmaBuildAction a = new KarmaBuildAction(null, null, null, null, null, null, readThresholds(r.getAttribute("health")));
+            readRatio(r, "line", a.counts, LINE);
+            readRatio(r, "statement", a.counts, STATEMENT);
+            readRatio(r, "function", a.counts, FUNCTION);
+            readRatio(r, "branch", a.counts, BRANCH);
+            if ("true".equals(r.getAttribute("failed"))) {
+                a.setFailed();
+            }
+            while (r.hasMoreChildren()) {
+                r.moveDown();
+                if (r.getNodeName().equals("regressions")) {
+                    a.regressions = (List<FileDelta>) context.convertAnother(a, ArrayList.class);
+                } else if (r.getNodeName().equals("diffCoverage")) {
+                    a.diffCoverage = (DiffCoverage.Result) context.convertAnother(a, DiffCoverage.Result.class);
+                } else if (r.getNodeName().equals("baseline")) {
+                    a.baseline = new KarmaBaseline(r.getAttribute("job"), Integer.parseInt(r.getAttribute("number")), unset());
+                    readRatio(r, "line", a.baseline.counts, LINE);
+                    readRatio(r, "statement", a.baseline.counts, STATEMENT);
+                    readRatio(r, "function", a.baseline.counts, FUNCTION);
+                    readRatio(r, "branch", a.baseline.counts, BRANCH);
+                }
+                r.moveUp();
+            }
+            return a;
+        }
+
+        /**
+         * Writes "x/y" from the packed counts. Ratios that were never set are left out.
+         */
+        private static void writeRatio(HierarchicalStreamWriter w, String name, long[] counts, int i) {
+            if (counts[2 * i + 1] != Ratio.UNSET) {
+                w.addAttribute(name, counts[2 * i] + "/" + counts[2 * i + 1]);
+            }
+        }
+
+        /**
+         * Reads "x/y" into the packed counts. "-", written by earlier versions for ratios that were never set, is skipped.
+         */
+        private static void readRatio(HierarchicalStreamReader r, String name, long[] counts, int i) {
+            String v = r.getAttribute(name);
+            int idx = v == null ? -1 : v.indexOf('/');
+            if (idx >= 0) {
+                counts[2 * i] = parseCount(v, 0, idx);
+                counts[2 * i + 1] = parseCount(v, idx + 1, v.length());
+            }
+        }
+
+        /**
+         * Parses a count, which can be negative for reports that could not be read,
+         * or a float in exponent notation when written from float counts.
+         */
+        private static long parseCount(String v, int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = v.charAt(i);
+                if (c == 'E' || c == 'e') {
+                    return Math.round(Double.parseDouble(v.substring(start, end)));
+                }
+            }
+            if (start < end && v.charAt(start) == '-') {
+                return -Ratio.parseCount(v, start + 1, end);
+            }
+            return Ratio.parseCount(v, start, end);
+        }
+
+        private static KarmaHealthReportThresholds readThresholds(String v) {
+            if (v == null) {
+                return null;
+            }
+            String[] t = v.split(",");
+            return new KarmaHealthReportThresholds(Integer.parseInt(t[0]), Integer.parseInt(t[1]), Integer.parseInt(t[2]), Integer.parseInt(t[3]),
+                    Integer.parseInt(t[4]), Integer.parseInt(t[5]), Integer.parseInt(t[6]), Integer.parseInt(t[7]));
+        }
+    }
 }
@@ -0,0 +1,31 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import jenkins.model.TransientActionFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Attaches the {@link KarmaBuildAction} recorded in the <tt>karma</tt> folder of a build,
+ * read only when the build's actions are asked for.
+ */
+@Extension
+public class KarmaBuildActionFactory extends TransientActionFactory<AbstractBuild> {
+
+    @Override
+    public Class<AbstractBuild> type() {
+        return AbstractBuild.class;
+    }
+
+    @Override
+    public Collection<? extends Action> createFor(AbstractBuild target) {
+        KarmaBuildAction a = KarmaBuildAction.load(target);
+        if (a == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singleton(a);
+    }
+}
@@ -0,0 +1,156 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compacts the <tt>karma</tt> folder of the builds older than the ones whose
+ * full reports are kept, see {@link KarmaPublisher#keepReports}: only the
+ * summary and the per-file counters stay, so the build keeps its coverage,
+ * trend and regressions, while the archived reports, lcov files, line hits
+ * and shards go.
+ *
+ * <p>
+ * It runs in its own thread at the lowest priority, takes no lock a build
+ * takes, and only touches builds that are done. Builds are found from the
+ * {@link KarmaIndex}, read without its lock; jobs without an index yet are
+ * left for a later run rather than having it written from their builds. Disk time is bounded by
+ * resting after each build for several times as long as compacting it took,
+ * and long enough to keep under {@link #BYTES_PER_SECOND}. The builds already
+ * compacted are remembered per job, so a run reads the folders of new builds only.
+ */
+@Extension
+public final class KarmaCompaction extends AsyncPeriodicWork {
+
+    /**
+     * Time spent resting for each unit of time spent deleting.
+     */
+    static final int REST = 4;
+
+    /**
+     * Bound on the bytes deleted per second.
+     */
+    static final long BYTES_PER_SECOND = 16L * 1024 * 1024;
+
+    /**
+     * Number of the last build compacted, by job.
+     */
+    private static final Map<Job<?,?>, Integer> COMPACTED = new WeakHashMap<Job<?,?>, Integer>();
+
+    public KarmaCompaction() {
+        super("Karma report compaction");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return HOUR;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Thread thread = Thread.currentThread();
+        int priority = thread.getPriority();
+        thread.setPriority(Thread.MIN_PRIORITY);
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for (AbstractProject<?,?> job : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+                KarmaPublisher publisher = job.getPublishersList().get(KarmaPublisher.class);
+                if (publisher != null && publisher.keepReports > 0) {
+                    try {
+                        compact(job, publisher.keepReports, listener);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to compact the coverage reports of " + job, e);
+                    }
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(old);
+            thread.setPriority(priority);
+        }
+    }
+
+    /**
+     * Compacts the builds of a job that recorded coverage, but the last <tt>keep</tt> ones.
+     */
+    private static void compact(Job<?,?> job, int keep, TaskListener listener) throws IOException, InterruptedException {
+        if (!new File(job.getRootDir(), KarmaIndex.FILE_NAME).exists()) {
+            return;
+        }
+        Integer done;
+        synchronized (COMPACTED) {
+            done = COMPACTED.get(job);
+        }
+        List<KarmaIndex.Record> records = KarmaIndex.of(job).read(done == null ? Integer.MIN_VALUE : done + 1, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+        int builds = 0;
+        long freed = 0;
+        for (int i = 0; i < records.size() - keep; i++) {
+            int number = records.get(i).number;
+            long start = System.currentTimeMillis();
+            long bytes = compact(new File(new File(job.getBuildDir(), Integer.toString(number)), "karma"));
+            if (bytes > 0) {
+                builds++;
+                freed += bytes;
+                long took = System.currentTimeMillis() - start;
+                Thread.sleep(Math.max(took * REST, bytes * 1000 / BYTES_PER_SECOND - took));
+            }
+            synchronized (COMPACTED) {
+                COMPACTED.put(job, number);
+            }
+        }
+        if (builds > 0) {
+            listener.getLogger().println("Compacted the coverage reports of " + builds + " builds of " + job.getFullName() + ", " + freed / 1024 + " KB freed");
+        }
+    }
+
+    /**
+     * Deletes everything in the <tt>karma</tt> folder of a build but the summary and the per-file counters.
+     *
+     * @return the number of bytes deleted.
+     */
+    static long compact(File folder) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long bytes = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.equals(KarmaBuildAction.SUMMARY_FILE) || name.equals(FileCoverageTable.FILE_NAME)) {
+                continue;
+            }
+            bytes += f.isDirectory() ? sizeOf(f) : f.length();
+            Util.deleteRecursive(f);
+        }
+        return bytes;
+    }
+
+    private static long sizeOf(File dir) {
+        long bytes = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                bytes += f.isDirectory() ? sizeOf(f) : f.length();
+            }
+        }
+        return bytes;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KarmaCompaction.class.getName());
+}
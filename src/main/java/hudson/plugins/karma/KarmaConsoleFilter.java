@@ -0,0 +1,245 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.console.ConsoleLogFilter;
+import hudson.model.AbstractBuild;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Picks the coverage summary printed by Karma's <tt>text-summary</tt> reporter
+ * out of the console of the builds that publish coverage, as it is written:
+ *
+ * <pre>
+ * Statements   : 85.3% ( 1234/1446 )
+ * Branches     : 71.02% ( 201/283 )
+ * Functions    : 80% ( 96/120 )
+ * Lines        : 85.9% ( 1200/1397 )
+ * </pre>
+ *
+ * <p>
+ * The bytes go through untouched and are matched one at a time, without
+ * buffering lines or decoding them, so the console costs no more than it did.
+ * Colour escapes are skipped. When several summaries are printed, the last
+ * complete one wins. {@link KarmaPublisher} falls back to it when no report
+ * file is found, so it needs no file at all.
+ */
+@Extension
+public final class KarmaConsoleFilter extends ConsoleLogFilter {
+
+    private static final Map<AbstractBuild<?,?>, Matcher> MATCHERS = new WeakHashMap<AbstractBuild<?,?>, Matcher>();
+
+    @Override
+    public OutputStream decorateLogger(AbstractBuild build, OutputStream logger) throws IOException, InterruptedException {
+        if (build == null || build.getProject().getPublishersList().get(KarmaPublisher.class) == null) {
+            return logger;
+        }
+        Matcher m = new Matcher(logger);
+        synchronized (MATCHERS) {
+            MATCHERS.put(build, m);
+        }
+        return m;
+    }
+
+    /**
+     * Gets the last complete summary printed to the console of the given build,
+     * in the order produced by the report parser, or null if there is none.
+     */
+    static Ratio[] getRatios(AbstractBuild<?,?> build) {
+        Matcher m;
+        synchronized (MATCHERS) {
+            m = MATCHERS.get(build);
+        }
+        return m == null ? null : m.getRatios();
+    }
+
+    /**
+     * Labels of the summary, in report order.
+     */
+    private static final byte[][] LABELS = {
+        ascii("Statements"), ascii("Branches"), ascii("Functions"), ascii("Lines")
+    };
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    /**
+     * Longest percentage accepted between the colon and the parenthesis, e.g. <tt>Unknown%</tt>.
+     */
+    private static final int MAX_PERCENTAGE = 16;
+
+    // states of the matcher
+    private static final int INDENT = 0, LABEL = 1, COLON = 2, PERCENTAGE = 3, OPEN = 4,
+            COVERED = 5, TOTAL = 6, CLOSE = 7, SKIP = 8;
+
+    /**
+     * Passes the console through and matches the summary lines in it.
+     */
+    static final class Matcher extends FilterOutputStream {
+        private int state = INDENT;
+        private boolean escape;
+        private int label, pos, skipped;
+        private long covered, total;
+
+        /**
+         * Ratios of the summary being printed, in report order.
+         */
+        private final long[] pending = new long[8];
+        private int seen;
+
+        /**
+         * Last complete summary, or null. Read by the publisher while the build writes to the console.
+         */
+        private volatile long[] last;
+
+        Matcher(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            match((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            for (int i = off; i < off + len; i++) {
+                match(b[i]);
+            }
+        }
+
+        Ratio[] getRatios() {
+            long[] last = this.last;
+            if (last == null) {
+                return null;
+            }
+            Ratio[] r = new Ratio[4];
+            for (int i = 0; i < 4; i++) {
+                r[i] = new Ratio(last[2 * i], last[2 * i + 1]);
+            }
+            return r;
+        }
+
+        private void match(byte b) {
+            if (b == '\n' || b == '\r') {
+                state = INDENT;
+                escape = false;
+                return;
+            }
+            if (escape) {
+                // ESC [ parameters ... final byte
+                if (b >= '@' && b <= '~' && b != '[') {
+                    escape = false;
+                }
+                return;
+            }
+            if (b == 0x1b) {
+                escape = true;
+                return;
+            }
+            switch (state) {
+            case INDENT:
+                if (b == ' ' || b == '\t') {
+                    return;
+                }
+                for (label = 0; label < LABELS.length; label++) {
+                    if (LABELS[label][0] == b) {
+                        break;
+                    }
+                }
+                pos = 1;
+                state = label < LABELS.length ? LABEL : SKIP;
+                return;
+            case LABEL:
+                if (pos < LABELS[label].length) {
+                    state = LABELS[label][pos++] == b ? LABEL : SKIP;
+                    return;
+                }
+                state = COLON;
+                // fall through to the spaces after the label
+            case COLON:
+                if (b == ':') {
+                    state = PERCENTAGE;
+                    skipped = 0;
+                } else if (b != ' ' && b != '\t') {
+                    state = SKIP;
+                }
+                return;
+            case PERCENTAGE:
+                if (b == '(') {
+                    state = OPEN;
+                } else if (++skipped > MAX_PERCENTAGE) {
+                    state = SKIP;
+                }
+                return;
+            case OPEN:
+                if (b >= '0' && b <= '9') {
+                    covered = b - '0';
+                    state = COVERED;
+                } else if (b != ' ') {
+                    state = SKIP;
+                }
+                return;
+            case COVERED:
+                if (b >= '0' && b <= '9') {
+                    covered = covered * 10 + (b - '0');
+                } else if (b == '/') {
+                    total = 0;
+                    pos = 0;
+                    state = TOTAL;
+                } else {
+                    state = SKIP;
+                }
+                return;
+            case TOTAL:
+                if (b >= '0' && b <= '9') {
+                    total = total * 10 + (b - '0');
+                    pos++;
+                } else if (pos > 0 && (b == ' ' || b == ')')) {
+                    state = CLOSE;
+                    if (b == ')') {
+                        record();
+                    }
+                } else {
+                    state = SKIP;
+                }
+                return;
+            case CLOSE:
+                if (b == ')') {
+                    record();
+                } else if (b != ' ') {
+                    state = SKIP;
+                }
+                return;
+            default:
+                // rest of a line that is not part of the summary
+            }
+        }
+
+        private void record() {
+            state = SKIP;
+            if (label == 0) {
+                // a new summary starts
+                seen = 0;
+            }
+            pending[2 * label] = covered;
+            pending[2 * label + 1] = total;
+            seen |= 1 << label;
+            if (seen == (1 << LABELS.length) - 1) {
+                last = pending.clone();
+                seen = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package hudson.plugins.karma;
+
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Collects the coverage counters of the reports published by the shards of
+ * one build, as each shard finishes.
+ *
+ * <p>
+ * Shards may run in parallel, so merging is synchronized. Counters of each
+ * report are summed, which assumes the shards cover disjoint sets of files.
+ * {@link KarmaPublisher} folds in whatever reports are still left at the end
+ * of the build and creates the {@link KarmaBuildAction} from the totals,
+ * without reading the reports of earlier shards again.
+ *
+ * <p>
+ * Reports are told apart by shard and workspace path, since shards run one
+ * after the other in the same workspace usually write the same report file.
+ *
+ * @see KarmaShardPublisher
+ */
+public final class KarmaCoverageAccumulator extends InvisibleAction {
+
+    /**
+     * Numerator and denominator of each of the four ratios, in report order.
+     */
+    private final long[] counters = new long[8];
+
+    /**
+     * Shard and workspace path of the reports merged so far.
+     */
+    private final Set<String> merged = new HashSet<String>();
+
+    /**
+     * Workspace paths of the reports merged so far, by any shard.
+     */
+    private final Set<String> paths = new HashSet<String>();
+
+    /**
+     * Merges the ratios parsed from a report that no shard published.
+     *
+     * @return false if this report was already merged.
+     */
+    public boolean merge(String report, Ratio[] ratios) {
+        return merge(null, report, ratios);
+    }
+
+    /**
+     * Merges the ratios parsed from one report of a shard.
+     *
+     * @return false if this report of this shard was already merged.
+     */
+    public synchronized boolean merge(String shard, String report, Ratio[] ratios) {
+        if (!merged.add(key(shard, report))) {
+            return false;
+        }
+        paths.add(report);
+        if (ratios != null) {
+            for (int i = 0; i < 4 && i < ratios.length; i++) {
+                Ratio r = ratios[i];
+                // unparseable ratios are recorded as -1/-1
+                if (r != null && r.getTotal() >= 0) {
+                    counters[2 * i] += r.getCovered();
+                    counters[2 * i + 1] += r.getTotal();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether any shard merged the report at this workspace path.
+     */
+    public synchronized boolean isMerged(String report) {
+        return paths.contains(report);
+    }
+
+    /**
+     * Checks whether this shard merged the report at this workspace path.
+     */
+    public synchronized boolean isMerged(String shard, String report) {
+        return merged.contains(key(shard, report));
+    }
+
+    private static String key(String shard, String report) {
+        return shard == null ? report : shard + '\0' + report;
+    }
+
+    public synchronized boolean isEmpty() {
+        return merged.isEmpty();
+    }
+
+    public synchronized int size() {
+        return merged.size();
+    }
+
+    /**
+     * Gets the combined ratios, in the order produced by the report parser.
+     */
+    public synchronized Ratio[] getRatios() {
+        Ratio[] r = new Ratio[4];
+        for (int i = 0; i < 4; i++) {
+            r[i] = new Ratio(counters[2 * i], counters[2 * i + 1]);
+        }
+        return r;
+    }
+
+    /**
+     * Gets the accumulator of the given build, attaching a new one if needed.
+     */
+    public static KarmaCoverageAccumulator of(AbstractBuild<?,?> build) {
+        synchronized (LOCK) {
+            KarmaCoverageAccumulator a = build.getAction(KarmaCoverageAccumulator.class);
+            if (a == null) {
+                a = new KarmaCoverageAccumulator();
+                build.getActions().add(a);
+            }
+            return a;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+}
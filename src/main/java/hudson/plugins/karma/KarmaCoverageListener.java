@@ -0,0 +1,59 @@
+package hudson.plugins.karma;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractBuild;
+import jenkins.model.Jenkins;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives the coverage of each build that records some.
+ *
+ * <p>
+ * Listeners are called on the thread running or completing the build, so they
+ * should only update what they keep in memory, or the tail of their own small
+ * files. Anything that loads builds or reads a whole history is done in the
+ * background, with the builds completing meanwhile queued.
+ */
+public abstract class KarmaCoverageListener implements ExtensionPoint {
+
+    /**
+     * Called as soon as a build has recorded its coverage, while it is still running.
+     */
+    public void onRecorded(AbstractBuild<?,?> build, KarmaBuildAction action) {
+    }
+
+    /**
+     * Called when a build that recorded coverage completes, after its {@link KarmaIndex} record is written.
+     */
+    public void onCompleted(AbstractBuild<?,?> build, KarmaBuildAction action) {
+    }
+
+    public static ExtensionList<KarmaCoverageListener> all() {
+        return Jenkins.getInstance().getExtensionList(KarmaCoverageListener.class);
+    }
+
+    static void fireRecorded(AbstractBuild<?,?> build, KarmaBuildAction action) {
+        for (KarmaCoverageListener l : all()) {
+            try {
+                l.onRecorded(build, action);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, l + " failed on " + build, e);
+            }
+        }
+    }
+
+    static void fireCompleted(AbstractBuild<?,?> build, KarmaBuildAction action) {
+        for (KarmaCoverageListener l : all()) {
+            try {
+                l.onCompleted(build, action);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, l + " failed on " + build, e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KarmaCoverageListener.class.getName());
+}
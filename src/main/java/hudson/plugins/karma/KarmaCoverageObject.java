@@ -43,11 +43,63 @@ import org.kohsuke.stapler.export.ExportedBean;
 @ExportedBean
 public abstract class KarmaCoverageObject<SELF extends KarmaCoverageObject<SELF>> {
 
-	Ratio line = new Ratio();
-    Ratio statement = new Ratio();
-    Ratio function = new Ratio();
-    Ratio branch = new Ratio();
-    
+    /**
+     * Indices of the four ratios in {@link #counts}.
+     */
+    static final int LINE = 0, STATEMENT = 1, FUNCTION = 2, BRANCH = 3;
+
+    /**
+     * Covered and total count of each ratio, packed by {@link Ratio#pack}.
+     * A total of {@link Ratio#UNSET} stands for a ratio that was never set.
+     */
+    long[] counts = unset();
+
+    static long[] unset() {
+        long[] c = new long[8];
+        for (int i = 1; i < c.length; i += 2) {
+            c[i] = Ratio.UNSET;
+        }
+        return c;
+    }
+
+    /**
+     * Ratios recorded by earlier versions, only set while reading them back.
+     */
+    @Deprecated
+    Ratio line, statement, function, branch;
+
+    /**
+     * Moves the ratios recorded by earlier versions into {@link #counts}.
+     */
+    @SuppressWarnings("deprecation")
+    void migrate() {
+        if (counts == null) {
+            counts = unset();
+            set(LINE, line);
+            set(STATEMENT, statement);
+            set(FUNCTION, function);
+            set(BRANCH, branch);
+            line = statement = function = branch = null;
+        }
+    }
+
+    void set(int i, Ratio r) {
+        if (r != null) {
+            r.pack(counts, i);
+        }
+    }
+
+    /**
+     * Gets the percentage of one ratio without creating it.
+     */
+    float getPercentageFloat(int i) {
+        return Ratio.percentage(counts[2 * i], counts[2 * i + 1]);
+    }
+
+    boolean isInitialized(int i) {
+        return counts[2 * i + 1] != Ratio.UNSET;
+    }
+
     private volatile boolean failed = false;
 
     public boolean isFailed() {
@@ -62,24 +114,40 @@ public abstract class KarmaCoverageObject<SELF extends KarmaCoverageObject<SELF>
         failed = true;
     }
 
+    /**
+     * Gets one ratio, null if it was never set.
+     */
+    Ratio getCoverage(int i) {
+        return Ratio.unpack(counts, i);
+    }
+
+    /**
+     * Gets one ratio for the remote API, which has always shown a ratio that
+     * was never set as 0/0.
+     */
+    private Ratio getExported(int i) {
+        Ratio r = getCoverage(i);
+        return r != null ? r : new Ratio();
+    }
+
     @Exported(inline=true)
     public Ratio getLineCoverage() {
-        return line;
+        return getExported(LINE);
     }
 
     @Exported(inline=true)
     public Ratio getStatementCoverage() {
-        return statement;
+        return getExported(STATEMENT);
     }
 
     @Exported(inline=true)
     public Ratio getFunctionCoverage() {
-        return function;
+        return getExported(FUNCTION);
     }
 
     @Exported(inline=true)
     public Ratio getBranchCoverage() {
-        return branch;
+        return getExported(BRANCH);
     }
 
     /**
@@ -102,19 +170,19 @@ public abstract class KarmaCoverageObject<SELF extends KarmaCoverageObject<SELF>
      */
     public String printFourCoverageColumns() {
         StringBuilder buf = new StringBuilder();
-        printRatioCell(isFailed(), line, buf);
-        printRatioCell(isFailed(), statement, buf);
-        printRatioCell(isFailed(), function, buf);
-        printRatioCell(isFailed(), branch, buf);
+        printRatioCell(isFailed(), getLineCoverage(), buf);
+        printRatioCell(isFailed(), getStatementCoverage(), buf);
+        printRatioCell(isFailed(), getFunctionCoverage(), buf);
+        printRatioCell(isFailed(), getBranchCoverage(), buf);
         return buf.toString();
     }
 
     public boolean hasBranchCoverage() {
-        return branch.isInitialized();
+        return isInitialized(BRANCH);
     }
 
     public boolean hasLineCoverage() {
-        return line.isInitialized();
+        return isInitialized(LINE);
     }
 
     
@@ -136,8 +204,8 @@ public abstract class KarmaCoverageObject<SELF extends KarmaCoverageObject<SELF>
 	protected static void printRatioTable(Ratio ratio, StringBuilder buf){
 		String data = dataFormat.format(ratio.getPercentageFloat());
 		String percent = percentFormat.format(ratio.getPercentageFloat());
-		String numerator = intFormat.format(ratio.getNumerator());
-		String denominator = intFormat.format(ratio.getDenominator());
+		String numerator = String.valueOf(ratio.getCovered());
+		String denominator = String.valueOf(ratio.getTotal());
 		buf.append("<table class='percentgraph' cellpadding='0px' cellspacing='0px'><tr class='percentgraph'>")
 				.append("<td width='64px' class='data'>").append(percent).append("%</td>")
 				.append("<td class='percentgraph'>")
@@ -164,23 +232,35 @@ public abstract class KarmaCoverageObject<SELF extends KarmaCoverageObject<SELF>
         int width = (w != null) ? Integer.valueOf(w) : 500;
         int height = (h != null) ? Integer.valueOf(h) : 200;
 
-        new GraphImpl(this, t, width, height) {
-
-            @Override
-            protected DataSetBuilder<String, NumberOnlyBuildLabel> createDataSet(KarmaCoverageObject<SELF> obj) {
-                DataSetBuilder<String, NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+        long start = KarmaMetrics.GRAPH.start();
+        try {
+            new GraphImpl(this, t, width, height) {
 
-                for (KarmaCoverageObject<SELF> a = obj; a != null; a = a.getPreviousResult()) {
-                    NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(a.getBuild());
-                    dsb.add(a.line.getPercentageFloat(), Messages.KarmaCoverageObject_Legend_Line(), label);
-                    dsb.add(a.function.getPercentageFloat(), Messages.KarmaCoverageObject_Legend_Function(), label);
-                    dsb.add(a.statement.getPercentageFloat(), Messages.KarmaCoverageObject_Legend_Statement(), label);
-                    dsb.add(a.branch.getPercentageFloat(), Messages.KarmaCoverageObject_Legend_Branch(), label);
+                @Override
+                protected DataSetBuilder<String, NumberOnlyBuildLabel> createDataSet(KarmaCoverageObject<SELF> obj) {
+                    return createTrendDataSet(obj);
                 }
+            }.doPng(req, rsp);
+        } finally {
+            KarmaMetrics.GRAPH.stop(start);
+        }
+    }
 
-                return dsb;
-            }
-        }.doPng(req, rsp);
+    /**
+     * Collects the coverage of this report and all the previous ones, for the trend graph.
+     */
+    /*package*/ static DataSetBuilder<String, NumberOnlyBuildLabel> createTrendDataSet(KarmaCoverageObject<?> obj) {
+        DataSetBuilder<String, NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+
+        for (KarmaCoverageObject<?> a = obj; a != null; a = a.getPreviousResult()) {
+            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(a.getBuild());
+            dsb.add(a.getPercentageFloat(LINE), Messages.KarmaCoverageObject_Legend_Line(), label);
+            dsb.add(a.getPercentageFloat(FUNCTION), Messages.KarmaCoverageObject_Legend_Function(), label);
+            dsb.add(a.getPercentageFloat(STATEMENT), Messages.KarmaCoverageObject_Legend_Statement(), label);
+            dsb.add(a.getPercentageFloat(BRANCH), Messages.KarmaCoverageObject_Legend_Branch(), label);
+        }
+
+        return dsb;
     }
 
     public Api getApi() {
@@ -199,7 +279,13 @@ public abstract class KarmaCoverageObject<SELF extends KarmaCoverageObject<SELF>
         protected abstract DataSetBuilder<String, NumberOnlyBuildLabel> createDataSet(KarmaCoverageObject<SELF> obj);
 
         protected JFreeChart createGraph() {
-            final CategoryDataset dataset = createDataSet(obj).build();
+            long start = KarmaMetrics.GRAPH_DATASET.start();
+            final CategoryDataset dataset;
+            try {
+                dataset = createDataSet(obj).build();
+            } finally {
+                KarmaMetrics.GRAPH_DATASET.stop(start);
+            }
             final JFreeChart chart = ChartFactory.createLineChart(
                     null, // chart title
                     null, // unused
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.util.List;
 
 /**
  * Root object of the coverage report.
@@ -20,13 +21,19 @@ public final class KarmaCoverageReport extends KarmaCoverageObject<KarmaCoverage
     private final KarmaBuildAction action;
 	
 	private String name;
+
+	/**
+	 * Index of the line hits of this build, read on first use.
+	 */
+	private LineHitsStore lines;
 	
 	public KarmaCoverageReport(KarmaBuildAction action) {
         this.action = action;
-		this.line = action.line;
-		this.statement = action.statement;
-		this.function = action.function;
-		this.branch = action.branch;
+		// never changed once recorded, so shared with the action
+		this.counts = action.counts;
+		if (action.isFailed()) {
+			setFailed();
+		}
 		
         setName("Karmakarma");
     }
@@ -54,7 +61,87 @@ public final class KarmaCoverageReport extends KarmaCoverageObject<KarmaCoverage
 
     @Override
     public AbstractBuild<?,?> getBuild() {
-        return action.owner;
+        return action.getBuild();
+    }
+
+    /**
+     * Gets the source files whose line coverage dropped the most since the previous build, or the baseline.
+     */
+    public List<FileDelta> getRegressions() {
+        return action.getRegressions();
+    }
+
+    /**
+     * Gets the coverage of the lines changed since the configured base revision. Can be null.
+     */
+    public DiffCoverage.Result getDiffCoverage() {
+        return action.getDiffCoverage();
+    }
+
+    /**
+     * Gets the coverage of the target branch of a pull request build. Can be null.
+     */
+    public KarmaBaseline getBaseline() {
+        return action.getBaseline();
+    }
+
+    /**
+     * Gets the metrics of this build next to those of the target branch.
+     */
+    public List<KarmaBaseline.Row> getBaselineRows() {
+        return action.getBaselineRows();
+    }
+
+    /**
+     * Gets the line hits stored for this build.
+     *
+     * @return null if this build has no line level coverage.
+     */
+    public synchronized LineHitsStore getLineHits() throws IOException {
+        if (lines == null) {
+            lines = LineHitsStore.open(new File(KarmaPublisher.getKarmaReport(getBuild()), LineHitsStore.FILE_NAME));
+        }
+        return lines;
+    }
+
+    /**
+     * Gets the per-file coverage counters of this build, with the file paths.
+     *
+     * @return null if this build has no per-file coverage.
+     */
+    public FileCoverageTable getFileTable() throws IOException {
+        return FileCoverageTable.read(new File(KarmaPublisher.getKarmaReport(getBuild()), FileCoverageTable.FILE_NAME), true);
+    }
+
+    /**
+     * Gets the id under which a source file is reachable through {@link #getFile(String)}.
+     *
+     * @return -1 if there is no line level coverage of this file.
+     */
+    public int getFileId(String path) throws IOException {
+        LineHitsStore store = getLineHits();
+        return store == null ? -1 : store.indexOf(path);
+    }
+
+    /**
+     * Source file page, bound to <tt>file/<i>id</i></tt>.
+     */
+    public SourceFileReport getFile(String id) throws IOException {
+        LineHitsStore store = getLineHits();
+        if (store == null) {
+            return null;
+        }
+        int i;
+        try {
+            i = Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (i < 0 || i >= store.size()) {
+            return null;
+        }
+        int[][] hits = store.read(i);
+        return new SourceFileReport(this, store.getPath(i), hits[0], hits[1]);
     }
 
 }
@@ -0,0 +1,642 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.util.IOException2;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.joda.time.LocalDate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coverage of a job for each day it recorded some, stored in the job's folder
+ * next to its {@link KarmaIndex}, so that trends over days are read without
+ * going through builds.
+ *
+ * <p>
+ * Each day keeps the coverage of its last build and the counters of all its
+ * builds summed. Days are updated as builds complete; past days never change,
+ * so a day is only rewritten while builds of that day are still completing.
+ * Deleted builds stay counted in their day.
+ *
+ * <p>
+ * Days missing or damaged on disk are written again from the index in the
+ * background; readers wait for that, while builds completing meanwhile are
+ * queued and added once it is done.
+ *
+ * <pre>
+ * "KDY1"
+ * for each day, in order: int day, int number, int builds, int reserved, 8 * long last, 8 * long pooled
+ * </pre>
+ * where days are <tt>yyyymmdd</tt> in the time zone of the server, <tt>number</tt>
+ * is the last build of the day, and the counts are packed as in
+ * {@link KarmaCoverageObject#counts}, with ratios never set counting as 0/0 once pooled.
+ *
+ * <p>
+ * Each day also has a {@link CoverageDigest} of the percentages of its builds
+ * for every metric, so that the distribution of many jobs can be merged. They
+ * are variable in size, so they are kept in their own file:
+ *
+ * <pre>
+ * "KDG1"
+ * for each day, in the same order: int day, 4 * digest
+ * </pre>
+ */
+public final class KarmaDays {
+
+    /**
+     * Name of the file inside the job's folder.
+     */
+    public static final String FILE_NAME = "karma-days.dat";
+
+    private static final int MAGIC = 0x4b445931; // KDY1
+
+    static final int RECORD_SIZE = 4 + 4 + 4 + 4 + 8 * 8 + 8 * 8;
+
+    /**
+     * Name of the file of the digests inside the job's folder.
+     */
+    public static final String DIGESTS_FILE_NAME = "karma-digests.dat";
+
+    private static final int DIGESTS_MAGIC = 0x4b444731; // KDG1
+
+    private static final Map<Job<?,?>, KarmaDays> DAYS = new WeakHashMap<Job<?,?>, KarmaDays>();
+
+    private final Job<?,?> job;
+
+    /**
+     * Days read from the file, dropped when memory runs low.
+     */
+    private SoftReference<Data> data;
+
+    /**
+     * Writing of the days from the index, if it was started.
+     */
+    private Future<?> building;
+
+    /**
+     * Builds completed while the days are being written from the index.
+     */
+    private final List<KarmaIndex.Record> pending = new ArrayList<KarmaIndex.Record>();
+
+    /**
+     * Days changed in memory and waiting to be written out in full, held until they are.
+     */
+    private Data dirty;
+
+    private KarmaDays(Job<?,?> job) {
+        this.job = job;
+    }
+
+    /**
+     * Files are taken from the job's current folder: it moves when the job is renamed.
+     */
+    private File file() {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    private File digests() {
+        return new File(job.getRootDir(), DIGESTS_FILE_NAME);
+    }
+
+    /**
+     * Gets the days of the given job, or null if the job does not publish coverage.
+     */
+    public static KarmaDays of(Job<?,?> job) {
+        if (!(job instanceof AbstractProject) || ((AbstractProject<?,?>) job).getPublishersList().get(KarmaPublisher.class) == null) {
+            return null;
+        }
+        synchronized (DAYS) {
+            KarmaDays d = DAYS.get(job);
+            if (d == null) {
+                DAYS.put(job, d = new KarmaDays(job));
+            }
+            return d;
+        }
+    }
+
+    /**
+     * Gets the day of a timestamp, as <tt>yyyymmdd</tt>.
+     */
+    public static int dayOf(long timestamp) {
+        return dayOf(new LocalDate(timestamp));
+    }
+
+    public static int dayOf(LocalDate date) {
+        return date.getYear() * 10000 + date.getMonthOfYear() * 100 + date.getDayOfMonth();
+    }
+
+    public static LocalDate toDate(int day) {
+        return new LocalDate(day / 10000, day / 100 % 100, day % 100);
+    }
+
+    /**
+     * Days in memory, sorted, with 8 counts per day.
+     */
+    private static final class Data {
+        int size;
+        int[] days = new int[16];
+        int[] numbers = new int[16];
+        int[] builds = new int[16];
+        long[] last = new long[16 * 8];
+        long[] pooled = new long[16 * 8];
+        CoverageDigest[] digests = new CoverageDigest[16 * 4];
+
+        /**
+         * Offset of the digests of the last day in their file, or -1 if unknown.
+         */
+        long lastDigests = -1;
+
+        void insert(int i, int day) {
+            if (size == days.length) {
+                int n = size * 2;
+                days = Arrays.copyOf(days, n);
+                numbers = Arrays.copyOf(numbers, n);
+                builds = Arrays.copyOf(builds, n);
+                last = Arrays.copyOf(last, n * 8);
+                pooled = Arrays.copyOf(pooled, n * 8);
+                digests = Arrays.copyOf(digests, n * 4);
+            }
+            System.arraycopy(days, i, days, i + 1, size - i);
+            System.arraycopy(numbers, i, numbers, i + 1, size - i);
+            System.arraycopy(builds, i, builds, i + 1, size - i);
+            System.arraycopy(last, i * 8, last, (i + 1) * 8, (size - i) * 8);
+            System.arraycopy(pooled, i * 8, pooled, (i + 1) * 8, (size - i) * 8);
+            System.arraycopy(digests, i * 4, digests, (i + 1) * 4, (size - i) * 4);
+            days[i] = day;
+            numbers[i] = Integer.MIN_VALUE;
+            builds[i] = 0;
+            Arrays.fill(last, i * 8, i * 8 + 8, 0);
+            Arrays.fill(pooled, i * 8, i * 8 + 8, 0);
+            for (int m = 0; m < 4; m++) {
+                digests[i * 4 + m] = new CoverageDigest();
+            }
+            size++;
+        }
+
+        /**
+         * Adds a build to its day, and returns the index of the day.
+         */
+        int add(int day, int number, long[] counts) {
+            int i = Arrays.binarySearch(days, 0, size, day);
+            if (i < 0) {
+                insert(i = -i - 1, day);
+            }
+            builds[i]++;
+            for (int j = 0; j < 8; j += 2) {
+                if (counts[j + 1] != Ratio.UNSET) {
+                    pooled[i * 8 + j] += counts[j];
+                    pooled[i * 8 + j + 1] += counts[j + 1];
+                    digests[i * 4 + j / 2].add(Ratio.percentage(counts[j], counts[j + 1]), 1);
+                }
+            }
+            if (number >= numbers[i]) {
+                numbers[i] = number;
+                System.arraycopy(counts, 0, last, i * 8, 8);
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Coverage of a range of days.
+     */
+    public static final class Slice {
+        private final int[] days;
+        private final long[] last;
+
+        Slice(int[] days, long[] last) {
+            this.days = days;
+            this.last = last;
+        }
+
+        public int size() {
+            return days.length;
+        }
+
+        /**
+         * Gets the i-th day, as <tt>yyyymmdd</tt>.
+         */
+        public int getDay(int i) {
+            return days[i];
+        }
+
+        public float getLinePercentage(int i) {
+            return percentage(i, KarmaCoverageObject.LINE);
+        }
+
+        public float getStatementPercentage(int i) {
+            return percentage(i, KarmaCoverageObject.STATEMENT);
+        }
+
+        public float getFunctionPercentage(int i) {
+            return percentage(i, KarmaCoverageObject.FUNCTION);
+        }
+
+        public float getBranchPercentage(int i) {
+            return percentage(i, KarmaCoverageObject.BRANCH);
+        }
+
+        /**
+         * Percentage of the last build of the day, 0 if the ratio was never set.
+         */
+        private float percentage(int i, int metric) {
+            long total = last[i * 8 + 2 * metric + 1];
+            return total == Ratio.UNSET ? 0 : Ratio.percentage(last[i * 8 + 2 * metric], total);
+        }
+    }
+
+    /**
+     * Gets the days from <tt>from</tt> to <tt>to</tt>, both inclusive and as <tt>yyyymmdd</tt>.
+     */
+    public Slice slice(int from, int to) throws IOException {
+        Data d = days();
+        synchronized (this) {
+            return slice(d, from, to);
+        }
+    }
+
+    private static Slice slice(Data d, int from, int to) {
+        int start = Arrays.binarySearch(d.days, 0, d.size, from);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        int end = Arrays.binarySearch(d.days, start, d.size, to);
+        end = end < 0 ? -end - 1 : end + 1;
+        return new Slice(Arrays.copyOfRange(d.days, start, end), Arrays.copyOfRange(d.last, start * 8, end * 8));
+    }
+
+    /**
+     * Gets the counts of the last build of the last day before the given one, or null if there is none.
+     */
+    long[] before(int day) throws IOException {
+        Data d = days();
+        synchronized (this) {
+            int i = Arrays.binarySearch(d.days, 0, d.size, day);
+            i = (i < 0 ? -i - 1 : i) - 1;
+            return i < 0 ? null : Arrays.copyOfRange(d.last, i * 8, i * 8 + 8);
+        }
+    }
+
+    /**
+     * Merges the digests of one metric of the days from <tt>from</tt> to <tt>to</tt>,
+     * both inclusive, into those of the same days, each day weighing 1.
+     */
+    public void mergeDigests(int from, int to, int metric, Map<Integer, CoverageDigest> into) throws IOException {
+        Data d = days();
+        synchronized (this) {
+            int i = Arrays.binarySearch(d.days, 0, d.size, from);
+            for (i = i < 0 ? -i - 1 : i; i < d.size && d.days[i] <= to; i++) {
+                CoverageDigest digest = d.digests[i * 4 + metric];
+                if (digest.isEmpty()) {
+                    continue;
+                }
+                CoverageDigest merged = into.get(d.days[i]);
+                if (merged == null) {
+                    into.put(d.days[i], merged = new CoverageDigest());
+                }
+                merged.merge(digest, (float) (1 / digest.getTotalWeight()));
+            }
+        }
+    }
+
+    /**
+     * Adds a completed build to its day. Only the last day is rewritten in place;
+     * if the days have to be written from the index first, the build is queued,
+     * and if an older day changed, they are written out in full in the background.
+     */
+    public synchronized void add(AbstractBuild<?,?> build, KarmaBuildAction action) throws IOException {
+        Data d = load();
+        if (d == null) {
+            pending.add(new KarmaIndex.Record(build.getNumber(), build.getTimeInMillis(), build.getResult(), action.isFailed(), action.counts));
+            build();
+            return;
+        }
+        File file = file();
+        File digests = digests();
+        int size = d.size;
+        int i = d.add(dayOf(build.getTimeInMillis()), build.getNumber(), action.counts);
+        if (dirty != null) {
+            // about to be written out in full, with this build
+            return;
+        }
+        long offset = 4 + (long) i * RECORD_SIZE;
+        long digestsOffset = d.size > size ? digests.length() : d.lastDigests;
+        if (i < d.size - 1 || file.length() < offset || digestsOffset < 0) {
+            // a build of an older day completed late, or days were cut short by a crash
+            if (dirty == null) {
+                dirty = d;
+                Computer.threadPoolForRemoting.submit(new Runnable() {
+                    public void run() {
+                        synchronized (KarmaDays.this) {
+                            try {
+                                if (dirty != null) {
+                                    write(dirty);
+                                }
+                            } catch (IOException e) {
+                                LOGGER.log(Level.WARNING, "Failed to write the daily coverage of " + job, e);
+                            } finally {
+                                dirty = null;
+                            }
+                        }
+                    }
+                });
+            }
+            return;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(RECORD_SIZE);
+        write(new DataOutputStream(buf), d, i);
+        replaceTail(file, offset, buf.toByteArray());
+        buf.reset();
+        writeDigests(new DataOutputStream(buf), d, i);
+        replaceTail(digests, digestsOffset, buf.toByteArray());
+        d.lastDigests = digestsOffset;
+    }
+
+    private static void replaceTail(File file, long offset, byte[] tail) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.setLength(offset);
+            f.seek(offset);
+            f.write(tail);
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Gets the days, reading them if needed; called with the lock held.
+     *
+     * @return null if they are missing or damaged, and have to be written from the index.
+     */
+    private Data load() throws IOException {
+        Data d = data == null ? null : data.get();
+        if (d == null) {
+            d = dirty;
+        }
+        if (d != null) {
+            return d;
+        }
+        d = file().exists() && digests().exists() ? read() : null;
+        if (d != null) {
+            data = new SoftReference<Data>(d);
+        }
+        return d;
+    }
+
+    /**
+     * Gets the days, waiting for them to be written from the index if needed;
+     * called without the lock, which is needed to read the result.
+     */
+    private Data days() throws IOException {
+        synchronized (this) {
+            Data d = load();
+            if (d != null) {
+                return d;
+            }
+        }
+        try {
+            build().get();
+        } catch (ExecutionException e) {
+            throw new IOException2("Failed to write the daily coverage of " + job, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the daily coverage of " + job);
+        }
+        synchronized (this) {
+            Data d = load();
+            return d == null ? new Data() : d;
+        }
+    }
+
+    /**
+     * Starts writing the days from the index in the background, unless they already are being written.
+     */
+    private synchronized Future<?> build() {
+        if (building == null || building.isDone()) {
+            building = Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        rebuild();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to write the daily coverage of " + job, e);
+                    }
+                }
+            });
+        }
+        return building;
+    }
+
+    /**
+     * Writes the days from the index, followed by the builds completed meanwhile
+     * that it did not have yet. The index is read without the lock.
+     */
+    private void rebuild() throws IOException {
+        List<KarmaIndex.Record> records = KarmaIndex.of(job).read(Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+        Data d = new Data();
+        for (KarmaIndex.Record r : records) {
+            d.add(dayOf(r.timestamp), r.number, r.counts);
+        }
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                Set<Integer> indexed = new HashSet<Integer>();
+                for (KarmaIndex.Record r : records) {
+                    indexed.add(r.number);
+                }
+                for (KarmaIndex.Record r : pending) {
+                    if (!indexed.contains(r.number)) {
+                        d.add(dayOf(r.timestamp), r.number, r.counts);
+                    }
+                }
+                pending.clear();
+            }
+            dirty = null;
+            write(d);
+            data = new SoftReference<Data>(d);
+        }
+    }
+
+    /**
+     * Reads the file, or returns null if it is damaged and has to be written again.
+     */
+    private Data read() throws IOException {
+        File file = file();
+        Data d = new Data();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                LOGGER.warning("Not a coverage roll-up, writing it again: " + file);
+                return null;
+            }
+            while (true) {
+                int day;
+                try {
+                    day = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (d.size > 0 && day <= d.days[d.size - 1]) {
+                    LOGGER.warning("Days out of order, writing them again: " + file);
+                    return null;
+                }
+                d.insert(d.size, day);
+                int i = d.size - 1;
+                d.numbers[i] = in.readInt();
+                d.builds[i] = in.readInt();
+                in.readInt();
+                for (int j = 0; j < 8; j++) {
+                    d.last[i * 8 + j] = in.readLong();
+                }
+                for (int j = 0; j < 8; j++) {
+                    d.pooled[i * 8 + j] = in.readLong();
+                }
+            }
+        } catch (EOFException e) {
+            // the last day cut short by a crash: write everything again
+            LOGGER.log(Level.FINE, "Truncated day in " + file, e);
+            return null;
+        } finally {
+            in.close();
+        }
+        return readDigests(d) ? d : null;
+    }
+
+    /**
+     * Reads the digests of the days, or returns false if they do not match the days.
+     */
+    private boolean readDigests(Data d) throws IOException {
+        File digests = digests();
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(digests)));
+        DataInputStream in = new DataInputStream(counter);
+        try {
+            if (in.readInt() != DIGESTS_MAGIC) {
+                LOGGER.warning("Not coverage digests, writing them again: " + digests);
+                return false;
+            }
+            for (int i = 0; i < d.size; i++) {
+                d.lastDigests = counter.getByteCount();
+                if (in.readInt() != d.days[i]) {
+                    LOGGER.warning("Digests do not match the days, writing them again: " + digests);
+                    return false;
+                }
+                for (int m = 0; m < 4; m++) {
+                    d.digests[i * 4 + m] = CoverageDigest.read(in);
+                }
+            }
+        } catch (EOFException e) {
+            LOGGER.log(Level.FINE, "Truncated digests in " + digests, e);
+            return false;
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    private void write(Data d) throws IOException {
+        File file = file();
+        File digests = digests();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            for (int i = 0; i < d.size; i++) {
+                write(out, d, i);
+            }
+        } finally {
+            out.close();
+        }
+        replace(tmp, file);
+
+        tmp = new File(digests.getPath() + ".tmp");
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(DIGESTS_MAGIC);
+            d.lastDigests = -1;
+            for (int i = 0; i < d.size; i++) {
+                d.lastDigests = out.size();
+                writeDigests(out, d, i);
+            }
+        } finally {
+            out.close();
+        }
+        replace(tmp, digests);
+    }
+
+    private static void replace(File tmp, File file) throws IOException {
+        if (!tmp.renameTo(file)) {
+            // Windows does not rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+    }
+
+    private static void writeDigests(DataOutputStream out, Data d, int i) throws IOException {
+        out.writeInt(d.days[i]);
+        for (int m = 0; m < 4; m++) {
+            d.digests[i * 4 + m].write(out);
+        }
+    }
+
+    private static void write(DataOutputStream out, Data d, int i) throws IOException {
+        out.writeInt(d.days[i]);
+        out.writeInt(d.numbers[i]);
+        out.writeInt(d.builds[i]);
+        out.writeInt(0);
+        for (int j = 0; j < 8; j++) {
+            out.writeLong(d.last[i * 8 + j]);
+        }
+        for (int j = 0; j < 8; j++) {
+            out.writeLong(d.pooled[i * 8 + j]);
+        }
+    }
+
+    /**
+     * Adds builds to their day as they complete.
+     */
+    @Extension
+    public static final class Listener extends KarmaCoverageListener {
+        @Override
+        public void onCompleted(AbstractBuild<?,?> build, KarmaBuildAction action) {
+            KarmaDays d = of(build.getParent());
+            if (d == null) {
+                return;
+            }
+            try {
+                d.add(build, action);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to add " + build + " to the daily coverage of its job", e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KarmaDays.class.getName());
+}
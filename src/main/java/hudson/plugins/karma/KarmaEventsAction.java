@@ -0,0 +1,206 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+import net.sf.json.util.JSONUtils;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes the coverage of each build, as soon as it is recorded, to clients of
+ * <tt>/karma-events/</tt> as server-sent events.
+ *
+ * <pre>
+ * id: 42
+ * event: coverage
+ * data: {"job":"folder/app","build":17,"url":"job/folder/job/app/17/","line":{"covered":850,"total":1000,"percentage":85.0,"delta":-1.2},...}
+ * </pre>
+ *
+ * <p>
+ * Each event is formatted once and offered to every client's bounded queue
+ * without blocking; a client that falls behind loses its oldest events. Each
+ * client is served by its request thread, which writes its queue out and a
+ * comment line as heartbeat when nothing happened for a while. Clients only
+ * get the events of the jobs they can read, or of <tt>?job=full/name</tt>.
+ *
+ * <p>
+ * The servlet API of this Jenkins has no asynchronous requests, so each client
+ * holds one of the container's request threads while connected. Clients are
+ * therefore capped well below the size of the usual request thread pool, see
+ * {@link #MAX_CLIENTS}, so that wallboards cannot lock users out of the UI.
+ */
+@Extension
+public class KarmaEventsAction extends KarmaCoverageListener implements RootAction {
+
+    /**
+     * Events a client can fall behind before losing the oldest ones.
+     */
+    private static final int QUEUE_SIZE = 64;
+
+    /**
+     * Clients served at a time, each taking a request thread; more are turned away.
+     * Set with the system property <tt>hudson.plugins.karma.KarmaEventsAction.maxClients</tt>.
+     */
+    static final int MAX_CLIENTS = Integer.getInteger(KarmaEventsAction.class.getName() + ".maxClients", 8);
+
+    private static final long HEARTBEAT = TimeUnit.SECONDS.toMillis(15);
+
+    private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+
+    /**
+     * Free client slots, taken before a client is served so that concurrent requests cannot overshoot {@link #MAX_CLIENTS}.
+     */
+    private final Semaphore slots = new Semaphore(MAX_CLIENTS);
+
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Last coverage of each job, for the deltas.
+     */
+    private final Map<Job<?,?>, long[]> last = new WeakHashMap<Job<?,?>, long[]>();
+
+    public String getIconFileName() {
+        // not shown in the side panel
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "karma-events";
+    }
+
+    private static final class Event {
+        final Job<?,?> job;
+        final String text;
+
+        Event(Job<?,?> job, String text) {
+            this.job = job;
+            this.text = text;
+        }
+    }
+
+    private static final class Client {
+        final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(QUEUE_SIZE);
+        final String job;
+
+        Client(String job) {
+            this.job = job;
+        }
+
+        void offer(Event e) {
+            while (!queue.offer(e)) {
+                // drop the stalest event to make room
+                queue.poll();
+            }
+        }
+    }
+
+    @Override
+    public void onRecorded(AbstractBuild<?,?> build, KarmaBuildAction action) {
+        long[] previous;
+        synchronized (last) {
+            previous = last.get(build.getParent());
+            if (previous == null) {
+                KarmaBuildAction p = action.getPreviousResult();
+                previous = p == null ? null : p.counts;
+            }
+            last.put(build.getParent(), action.counts);
+        }
+        if (clients.isEmpty()) {
+            return;
+        }
+        Event e = new Event(build.getParent(), format(ids.incrementAndGet(), build, action.counts, previous));
+        for (Client c : clients) {
+            if (c.job == null || c.job.equals(build.getParent().getFullName())) {
+                c.offer(e);
+            }
+        }
+    }
+
+    private static String format(long id, AbstractBuild<?,?> build, long[] counts, long[] previous) {
+        StringBuilder b = new StringBuilder(400);
+        b.append("id: ").append(id).append("\nevent: coverage\ndata: {\"job\":").append(JSONUtils.quote(build.getParent().getFullName()))
+         .append(",\"build\":").append(build.getNumber())
+         .append(",\"url\":").append(JSONUtils.quote(build.getUrl()));
+        format(b, "line", counts, previous, KarmaCoverageObject.LINE);
+        format(b, "statement", counts, previous, KarmaCoverageObject.STATEMENT);
+        format(b, "function", counts, previous, KarmaCoverageObject.FUNCTION);
+        format(b, "branch", counts, previous, KarmaCoverageObject.BRANCH);
+        return b.append("}\n\n").toString();
+    }
+
+    private static void format(StringBuilder b, String name, long[] counts, long[] previous, int i) {
+        b.append(",\"").append(name).append("\":");
+        if (counts[2 * i + 1] == Ratio.UNSET) {
+            b.append("null");
+            return;
+        }
+        float p = Ratio.percentage(counts[2 * i], counts[2 * i + 1]);
+        b.append("{\"covered\":").append(counts[2 * i])
+         .append(",\"total\":").append(counts[2 * i + 1])
+         .append(",\"percentage\":").append(p)
+         .append(",\"delta\":");
+        if (previous == null || previous[2 * i + 1] == Ratio.UNSET) {
+            b.append("null");
+        } else {
+            b.append(p - Ratio.percentage(previous[2 * i], previous[2 * i + 1]));
+        }
+        b.append('}');
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException, InterruptedException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        if (!slots.tryAcquire()) {
+            rsp.sendError(StaplerResponse.SC_SERVICE_UNAVAILABLE, "Too many clients");
+            return;
+        }
+        Client c = new Client(Util.fixEmptyAndTrim(req.getParameter("job")));
+        try {
+            rsp.setContentType("text/event-stream; charset=UTF-8");
+            rsp.setHeader("Cache-Control", "no-cache");
+            PrintWriter w = rsp.getWriter();
+            w.print("retry: 10000\n\n");
+            w.flush();
+
+            clients.add(c);
+            while (!w.checkError()) {
+                Event e = c.queue.poll(HEARTBEAT, TimeUnit.MILLISECONDS);
+                if (e == null) {
+                    w.print(": heartbeat\n\n");
+                }
+                // write whatever else is queued before flushing
+                for (; e != null; e = c.queue.poll()) {
+                    if (e.job.hasPermission(Item.READ)) {
+                        w.print(e.text);
+                    }
+                }
+                w.flush();
+            }
+        } finally {
+            clients.remove(c);
+            slots.release();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package hudson.plugins.karma;
+
+import hudson.Util;
+import hudson.model.Job;
+
+import net.sf.json.util.JSONUtils;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the coverage history of jobs from their {@link KarmaIndex}, one line per build,
+ * as NDJSON or CSV.
+ *
+ * <p>
+ * Query parameters:
+ * <dl>
+ * <dt>format</dt><dd><tt>json</tt>, the default, or <tt>csv</tt></dd>
+ * <dt>from, to</dt><dd>first and last build number, inclusive</dd>
+ * <dt>since, until</dt><dd>first and last day, inclusive, as <tt>yyyy-MM-dd</tt> or milliseconds since the epoch</dd>
+ * <dt>limit</dt><dd>maximum number of builds of each job, the oldest first; the next page starts at <tt>from</tt> = last number + 1</dd>
+ * </dl>
+ */
+final class KarmaHistory {
+    /**
+     * Lines written between two flushes.
+     */
+    private static final int FLUSH_EVERY = 256;
+
+    private final boolean csv;
+    private final int from, to, limit;
+    private final long since, until;
+
+    private KarmaHistory(StaplerRequest req) {
+        csv = "csv".equals(req.getParameter("format"));
+        from = parseInt(req.getParameter("from"), Integer.MIN_VALUE);
+        to = parseInt(req.getParameter("to"), Integer.MAX_VALUE);
+        limit = parseInt(req.getParameter("limit"), Integer.MAX_VALUE);
+        since = parseTime(req.getParameter("since"), Long.MIN_VALUE, false);
+        until = parseTime(req.getParameter("until"), Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Writes the history of the given jobs to the response.
+     */
+    static void write(StaplerRequest req, StaplerResponse rsp, Collection<? extends Job<?,?>> jobs) throws IOException {
+        KarmaHistory h;
+        try {
+            h = new KarmaHistory(req);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        h.write(rsp, jobs);
+    }
+
+    private void write(StaplerResponse rsp, Collection<? extends Job<?,?>> jobs) throws IOException {
+        rsp.setContentType(csv ? "text/csv; charset=UTF-8" : "application/x-ndjson; charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        StringBuilder buf = new StringBuilder(256);
+        if (csv) {
+            w.print("job,number,timestamp,result,failed,line_covered,line_total,statement_covered,statement_total,"
+                    + "function_covered,function_total,branch_covered,branch_total\n");
+        }
+        int lines = 0;
+        for (Job<?,?> job : jobs) {
+            List<KarmaIndex.Record> records = KarmaIndex.of(job).read(from, to, since, until);
+            String name = csv ? csvQuote(job.getFullName()) : JSONUtils.quote(job.getFullName());
+            for (int i = 0; i < records.size() && i < limit; i++) {
+                buf.setLength(0);
+                if (csv) {
+                    appendCsv(buf, name, records.get(i));
+                } else {
+                    appendJson(buf, name, records.get(i));
+                }
+                w.print(buf);
+                if (++lines % FLUSH_EVERY == 0) {
+                    w.flush();
+                }
+            }
+        }
+        w.flush();
+    }
+
+    private static void appendJson(StringBuilder buf, String name, KarmaIndex.Record r) {
+        buf.append("{\"job\":").append(name)
+           .append(",\"number\":").append(r.number)
+           .append(",\"timestamp\":").append(r.timestamp)
+           .append(",\"result\":").append(r.result == null ? "null" : "\"" + r.result + "\"")
+           .append(",\"failed\":").append(r.failed);
+        appendJson(buf, "line", r.counts, KarmaCoverageObject.LINE);
+        appendJson(buf, "statement", r.counts, KarmaCoverageObject.STATEMENT);
+        appendJson(buf, "function", r.counts, KarmaCoverageObject.FUNCTION);
+        appendJson(buf, "branch", r.counts, KarmaCoverageObject.BRANCH);
+        buf.append("}\n");
+    }
+
+    private static void appendJson(StringBuilder buf, String name, long[] counts, int i) {
+        buf.append(",\"").append(name).append("\":");
+        if (counts[2 * i + 1] == Ratio.UNSET) {
+            buf.append("null");
+        } else {
+            buf.append("{\"covered\":").append(counts[2 * i])
+               .append(",\"total\":").append(counts[2 * i + 1])
+               .append(",\"percentage\":").append(Ratio.percentage(counts[2 * i], counts[2 * i + 1])).append('}');
+        }
+    }
+
+    private static void appendCsv(StringBuilder buf, String name, KarmaIndex.Record r) {
+        buf.append(name).append(',').append(r.number).append(',').append(r.timestamp)
+           .append(',').append(r.result == null ? "" : r.result.toString()).append(',').append(r.failed);
+        for (int i = 0; i < r.counts.length; i++) {
+            buf.append(',');
+            if (r.counts[i | 1] != Ratio.UNSET) {
+                buf.append(r.counts[i]);
+            }
+        }
+        buf.append('\n');
+    }
+
+    private static String csvQuote(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    private static int parseInt(String v, int defaultValue) {
+        v = Util.fixEmptyAndTrim(v);
+        if (v == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + v);
+        }
+    }
+
+    /**
+     * Parses a day or milliseconds since the epoch. A day stands for its last millisecond when it ends a range.
+     */
+    private static long parseTime(String v, long defaultValue, boolean end) {
+        v = Util.fixEmptyAndTrim(v);
+        if (v == null) {
+            return defaultValue;
+        }
+        if (v.indexOf('-') < 0) {
+            try {
+                return Long.parseLong(v);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a date: " + v);
+            }
+        }
+        try {
+            long day = new SimpleDateFormat("yyyy-MM-dd").parse(v).getTime();
+            return end ? day + TimeUnit.DAYS.toMillis(1) - 1 : day;
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Not a date: " + v);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.TopLevelItem;
+import hudson.model.View;
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Exports the coverage history of many jobs at <tt>/karma-history/</tt>, read from their
+ * {@link KarmaIndex} without loading any build.
+ *
+ * <p>
+ * All the jobs are exported, or those of <tt>?view=name</tt>, or those below
+ * <tt>?folder=full/name</tt>. The other parameters are described in {@link KarmaHistory}.
+ * A single job is exported at <tt>/job/name/karma/history</tt>.
+ */
+@Extension
+public class KarmaHistoryAction implements RootAction {
+
+    public String getIconFileName() {
+        // not shown in the side panel
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "karma-history";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins jenkins = Jenkins.getInstance();
+        jenkins.checkPermission(Jenkins.READ);
+
+        Set<Job<?,?>> jobs = new LinkedHashSet<Job<?,?>>();
+        String view = Util.fixEmptyAndTrim(req.getParameter("view"));
+        String folder = Util.fixEmptyAndTrim(req.getParameter("folder"));
+        if (view != null) {
+            View v = jenkins.getView(view);
+            if (v == null) {
+                rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No such view: " + view);
+                return;
+            }
+            for (TopLevelItem item : v.getItems()) {
+                addJobs(jobs, item);
+            }
+        } else if (folder != null) {
+            Item item = jenkins.getItemByFullName(folder);
+            if (!(item instanceof ItemGroup)) {
+                rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No such folder: " + folder);
+                return;
+            }
+            addJobs(jobs, item);
+        } else {
+            addJobs(jobs, jenkins);
+        }
+        KarmaHistory.write(req, rsp, new ArrayList<Job<?,?>>(jobs));
+    }
+
+    /**
+     * Adds the given job, or the jobs below the given folder, that the user can read.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void addJobs(Set<Job<?,?>> jobs, Object item) {
+        if (item instanceof Job) {
+            jobs.add((Job<?,?>) item);
+        }
+        if (item instanceof ItemGroup) {
+            for (Job<?,?> job : Items.getAllItems((ItemGroup) item, Job.class)) {
+                jobs.add(job);
+            }
+        }
+    }
+}
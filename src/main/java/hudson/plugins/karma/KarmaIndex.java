@@ -0,0 +1,398 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.IOException2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coverage of every build of a job, stored in the job's folder so that the
+ * history can be read without loading any build.
+ *
+ * <p>
+ * Records have a fixed size and are appended as builds complete, so they are
+ * in completion order, not always in build number order. A build recorded
+ * twice keeps its last record.
+ *
+ * <p>
+ * A job whose builds predate the index gets it written from its builds in the
+ * background, the first time it is needed. Builds completing meanwhile are
+ * queued and added once it is written, so build completion never waits for it.
+ *
+ * <pre>
+ * "KIX1"
+ * for each build: int number, long timestamp, byte result, byte failed, short reserved, 8 * long counts
+ * </pre>
+ * where the counts are packed as in {@link KarmaCoverageObject#counts}.
+ */
+public final class KarmaIndex {
+
+    /**
+     * Name of the index inside the job's folder.
+     */
+    public static final String FILE_NAME = "karma-index.dat";
+
+    private static final int MAGIC = 0x4b495831; // KIX1
+
+    static final int RECORD_SIZE = 4 + 8 + 1 + 1 + 2 + 8 * 8;
+
+    /**
+     * Results by the byte recorded for them.
+     */
+    private static final Result[] RESULTS = { Result.SUCCESS, Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT, Result.ABORTED };
+
+    private static final Map<Job<?,?>, KarmaIndex> INDICES = new WeakHashMap<Job<?,?>, KarmaIndex>();
+
+    private final Job<?,?> job;
+
+    /**
+     * Writing of the missing index from the builds, if it was started.
+     */
+    private Future<?> building;
+
+    /**
+     * Builds completed while the index is missing.
+     */
+    private final List<Record> pending = new ArrayList<Record>();
+
+    private KarmaIndex(Job<?,?> job) {
+        this.job = job;
+    }
+
+    /**
+     * Gets the index file, in the job's current folder: it moves when the job is renamed.
+     */
+    private File file() {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    /**
+     * Gets the index of the given job.
+     */
+    public static KarmaIndex of(Job<?,?> job) {
+        synchronized (INDICES) {
+            KarmaIndex i = INDICES.get(job);
+            if (i == null) {
+                INDICES.put(job, i = new KarmaIndex(job));
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Coverage of one build.
+     */
+    public static final class Record {
+        public final int number;
+        public final long timestamp;
+        /**
+         * Null if the build had no result yet when recorded.
+         */
+        public final Result result;
+        public final boolean failed;
+        /**
+         * Packed as in {@link KarmaCoverageObject#counts}.
+         */
+        final long[] counts;
+
+        Record(int number, long timestamp, Result result, boolean failed, long[] counts) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.result = result;
+            this.failed = failed;
+            this.counts = counts;
+        }
+
+        public Ratio getLineCoverage() {
+            return Ratio.unpack(counts, KarmaCoverageObject.LINE);
+        }
+
+        public Ratio getStatementCoverage() {
+            return Ratio.unpack(counts, KarmaCoverageObject.STATEMENT);
+        }
+
+        public Ratio getFunctionCoverage() {
+            return Ratio.unpack(counts, KarmaCoverageObject.FUNCTION);
+        }
+
+        public Ratio getBranchCoverage() {
+            return Ratio.unpack(counts, KarmaCoverageObject.BRANCH);
+        }
+    }
+
+    /**
+     * Reads the records of the builds numbered from <tt>from</tt> to <tt>to</tt>
+     * and started from <tt>since</tt> to <tt>until</tt>, all inclusive, in build
+     * number order.
+     *
+     * <p>
+     * A job whose index was never written, because its builds predate it, has
+     * the index written from its builds first, which this waits for. Reading
+     * takes no lock: records are only appended, or the file replaced as a whole.
+     */
+    public List<Record> read(int from, int to, long since, long until) throws IOException {
+        File file = file();
+        if (!file.exists() && publishes()) {
+            try {
+                build().get();
+            } catch (ExecutionException e) {
+                throw new IOException2("Failed to write the coverage index of " + job, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the coverage index of " + job);
+            }
+        }
+        return readFile(file, from, to, since, until);
+    }
+
+    private static List<Record> readFile(File file, int from, int to, long since, long until) throws IOException {
+        TreeMap<Integer, Record> records = new TreeMap<Integer, Record>();
+        if (!file.exists()) {
+            return new ArrayList<Record>();
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a coverage index: " + file);
+            }
+            while (true) {
+                int number;
+                try {
+                    number = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                long timestamp = in.readLong();
+                int result = in.readByte();
+                boolean failed = in.readByte() != 0;
+                in.readShort();
+                long[] counts = new long[8];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = in.readLong();
+                }
+                if (number >= from && number <= to && timestamp >= since && timestamp <= until) {
+                    records.put(number, new Record(number, timestamp, result < 0 ? null : RESULTS[result], failed, counts));
+                } else {
+                    // a later record of the same build may fall outside the range
+                    records.remove(number);
+                }
+            }
+        } catch (EOFException e) {
+            // a record cut short by a crash while appending
+            LOGGER.log(Level.FINE, "Truncated record in " + file, e);
+        } finally {
+            in.close();
+        }
+        return new ArrayList<Record>(records.values());
+    }
+
+    /**
+     * Records the coverage of a build.
+     */
+    public synchronized void add(AbstractBuild<?,?> build, KarmaBuildAction action) throws IOException {
+        File file = file();
+        if (!file.exists()) {
+            // added once the index is written from the builds
+            pending.add(new Record(build.getNumber(), build.getTimeInMillis(), build.getResult(), action.isFailed(), action.counts));
+            build();
+            return;
+        }
+        long partial = (file.length() - 4) % RECORD_SIZE;
+        if (partial != 0) {
+            // drop a record cut short by a crash, so that the next ones stay aligned
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            try {
+                f.setLength(file.length() - partial);
+            } finally {
+                f.close();
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), RECORD_SIZE));
+        try {
+            write(out, build, action);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Removes the record of a deleted build.
+     */
+    public synchronized void remove(int number) throws IOException {
+        if (!file().exists()) {
+            return;
+        }
+        List<Record> records = readFile(file(), number, number, Long.MIN_VALUE, Long.MAX_VALUE);
+        if (records.isEmpty()) {
+            return;
+        }
+        records = readFile(file(), Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+        File tmp = new File(file().getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            for (Record r : records) {
+                if (r.number != number) {
+                    write(out, r.number, r.timestamp, r.result, r.failed, r.counts);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        replace(tmp);
+    }
+
+    /**
+     * Jobs that do not publish coverage are left without an index.
+     */
+    private boolean publishes() {
+        return job instanceof AbstractProject && ((AbstractProject<?,?>) job).getPublishersList().get(KarmaPublisher.class) != null;
+    }
+
+    /**
+     * Starts writing the missing index in the background, unless it is already being written.
+     */
+    private synchronized Future<?> build() {
+        if (building == null || building.isDone()) {
+            building = Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        rebuild();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to write the coverage index of " + job, e);
+                    }
+                }
+            });
+        }
+        return building;
+    }
+
+    /**
+     * Writes the index from the builds of the job, loading each of them once,
+     * followed by the builds completed meanwhile. Only the writing is locked.
+     */
+    private void rebuild() throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        if (publishes()) {
+            for (AbstractBuild<?,?> b = ((AbstractProject<?,?>) job).getLastBuild(); b != null; b = b.getPreviousBuild()) {
+                KarmaBuildAction a = KarmaBuildAction.of(b);
+                if (a != null) {
+                    records.add(new Record(b.getNumber(), b.getTimeInMillis(), b.getResult(), a.isFailed(), a.counts));
+                }
+            }
+            Collections.reverse(records);
+        }
+        synchronized (this) {
+            records.addAll(pending);
+            pending.clear();
+            if (!publishes() || file().exists()) {
+                return;
+            }
+            File tmp = new File(file().getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                for (Record r : records) {
+                    write(out, r.number, r.timestamp, r.result, r.failed, r.counts);
+                }
+            } finally {
+                out.close();
+            }
+            replace(tmp);
+        }
+    }
+
+    private void replace(File tmp) throws IOException {
+        File file = file();
+        if (!tmp.renameTo(file)) {
+            // Windows does not rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, AbstractBuild<?,?> build, KarmaBuildAction action) throws IOException {
+        write(out, build.getNumber(), build.getTimeInMillis(), build.getResult(), action.isFailed(), action.counts);
+    }
+
+    private static void write(DataOutputStream out, int number, long timestamp, Result result, boolean failed, long[] counts) throws IOException {
+        out.writeInt(number);
+        out.writeLong(timestamp);
+        out.writeByte(indexOf(result));
+        out.writeByte(failed ? 1 : 0);
+        out.writeShort(0);
+        for (long c : counts) {
+            out.writeLong(c);
+        }
+    }
+
+    private static int indexOf(Result result) {
+        for (int i = 0; i < RESULTS.length; i++) {
+            if (RESULTS[i] == result) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Keeps the indices up to date as builds complete and are deleted, and passes
+     * completed coverage on to the {@link KarmaCoverageListener}s.
+     */
+    @Extension
+    public static final class Listener extends RunListener<AbstractBuild> {
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            KarmaBuildAction action = KarmaBuildAction.of(build);
+            if (action == null) {
+                return;
+            }
+            try {
+                of(build.getParent()).add(build, action);
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Karma: failed to record the coverage in the job's index"));
+            }
+            KarmaCoverageListener.fireCompleted(build, action);
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild build) {
+            try {
+                of(build.getParent()).remove(build.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove " + build + " from the coverage index", e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KarmaIndex.class.getName());
+}
@@ -0,0 +1,725 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.RootAction;
+import hudson.model.TopLevelItem;
+import hudson.model.View;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+import net.sf.json.util.JSONUtils;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ranks jobs by their last coverage and by its change over the last
+ * {@value #DAYS} days, for the lowest covered jobs and the biggest regressions,
+ * served at <tt>/karma-leaderboard/</tt> and shown by the leaderboard portlet.
+ *
+ * <p>
+ * Every job is kept in a sorted set for each metric and ranking, and moved
+ * within it as its builds complete, so the first <i>k</i> jobs are always
+ * ready to be read. The change is measured from the last coverage of each job
+ * before the window, taken from {@link KarmaDays}; the window moves once a
+ * day, which ranks the changes again. The last coverage of every job is read
+ * once from its {@link KarmaIndex}, the first time the ranking is needed.
+ *
+ * <p>
+ * Reading the indices and the days takes long, so the seeding and the moves
+ * of the window run in the background, and only lock the rankings to apply
+ * what they read. Completed builds are queued and applied by whoever holds the
+ * lock next, so that finishing a build never waits for the rankings. A job
+ * ranked for the first time has its coverage before the window read in the
+ * background too, and has no change until then.
+ *
+ * <p>
+ * Like the badge, failed builds are left out. So are configurations of matrix
+ * projects, since the matrix build already combines them.
+ *
+ * <p>
+ * Query parameters: <tt>metric</tt>, one of <tt>line</tt> (the default),
+ * <tt>statement</tt>, <tt>function</tt> and <tt>branch</tt>, <tt>k</tt>, the
+ * number of jobs in each ranking, 20 by default, and <tt>view</tt> to only
+ * rank the jobs of a view.
+ */
+@Extension
+public class KarmaLeaderboard extends KarmaCoverageListener implements RootAction {
+
+    /**
+     * Days over which the change of coverage is measured.
+     */
+    public static final int DAYS = 7;
+
+    private static final int DEFAULT_SIZE = 20, MAX_SIZE = 1000;
+
+    private static final Comparator<Entry> BY_PERCENTAGE = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = Float.compare(a.percentage, b.percentage);
+            return c != 0 ? c : compare(a.id, b.id);
+        }
+
+        private int compare(long a, long b) {
+            return a < b ? -1 : a == b ? 0 : 1;
+        }
+    };
+
+    private static final Comparator<Entry> BY_CHANGE = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = Float.compare(a.change, b.change);
+            return c != 0 ? c : BY_PERCENTAGE.compare(a, b);
+        }
+    };
+
+    private final Map<Job<?,?>, State> states = new HashMap<Job<?,?>, State>();
+
+    /**
+     * For each metric, the jobs by their coverage, lowest first.
+     */
+    private final List<TreeSet<Entry>> lowest = new ArrayList<TreeSet<Entry>>();
+
+    /**
+     * For each metric, the jobs with a coverage before the window by its change, biggest drop first.
+     */
+    private final List<TreeSet<Entry>> regressions = new ArrayList<TreeSet<Entry>>();
+
+    private long ids;
+
+    /**
+     * Guards the rankings.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Builds completed since the rankings were last brought up to date.
+     */
+    private final Queue<Completed> completed = new ConcurrentLinkedQueue<Completed>();
+
+    /**
+     * Whether the seeding was started, and whether it is over.
+     */
+    private volatile boolean seeding, seeded;
+
+    /**
+     * Whether the window is being moved.
+     */
+    private boolean moving;
+
+    /**
+     * Jobs ranked without their coverage before the window, to be read in the background.
+     */
+    private final Set<Job<?,?>> unread = new HashSet<Job<?,?>>();
+
+    /**
+     * Whether the coverage before the window of some jobs is being read.
+     */
+    private boolean reading;
+
+    /**
+     * Incremented on reset, so that background work started before is dropped.
+     */
+    private int generation;
+
+    /**
+     * First day of the window, as <tt>yyyymmdd</tt>.
+     */
+    private volatile int window;
+
+    public KarmaLeaderboard() {
+        for (int i = 0; i < KarmaBadge.METRICS.length; i++) {
+            lowest.add(new TreeSet<Entry>(BY_PERCENTAGE));
+            regressions.add(new TreeSet<Entry>(BY_CHANGE));
+        }
+    }
+
+    public static KarmaLeaderboard get() {
+        return all().get(KarmaLeaderboard.class);
+    }
+
+    public String getIconFileName() {
+        // not shown in the side panel
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "karma-leaderboard";
+    }
+
+    /**
+     * Rank of a job for one metric.
+     */
+    public static final class Entry {
+        final long id;
+        final Job<?,?> job;
+        final float percentage;
+        /**
+         * Percentage points gained since before the window, NaN if the job had no coverage then.
+         */
+        final float change;
+
+        Entry(long id, Job<?,?> job, float percentage, float change) {
+            this.id = id;
+            this.job = job;
+            this.percentage = percentage;
+            this.change = change;
+        }
+
+        public Job<?,?> getJob() {
+            return job;
+        }
+
+        public float getPercentage() {
+            return percentage;
+        }
+
+        public float getChange() {
+            return change;
+        }
+    }
+
+    private static final class State {
+        final long id;
+        final int number;
+        final long[] counts;
+        /**
+         * Coverage before the window, or null.
+         */
+        long[] before;
+        final Entry[] entries = new Entry[KarmaBadge.METRICS.length];
+
+        State(long id, int number, long[] counts) {
+            this.id = id;
+            this.number = number;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Coverage of a completed build, and of its job before the window if it was read along.
+     */
+    private static final class Completed {
+        final Job<?,?> job;
+        final int number;
+        final long[] counts;
+        boolean read;
+        long[] before;
+
+        Completed(Job<?,?> job, int number, long[] counts) {
+            this.job = job;
+            this.number = number;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Whether the coverage of every job was read, so that the rankings are complete.
+     */
+    public boolean isReady() {
+        return seeded;
+    }
+
+    /**
+     * Gets the <tt>k</tt> lowest covered jobs among the given ones, or all of them
+     * if null, that the current user can read. Empty until {@link #isReady() ready}.
+     */
+    public List<Entry> getLowest(int metric, int k, Collection<? extends Job> within) {
+        if (!refresh()) {
+            return Collections.emptyList();
+        }
+        lock.lock();
+        try {
+            drain();
+            return first(lowest.get(metric), k, within, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the <tt>k</tt> jobs among the given ones, or all of them if null,
+     * that lost the most coverage over the window and that the current user can read.
+     * Empty until {@link #isReady() ready}.
+     */
+    public List<Entry> getRegressions(int metric, int k, Collection<? extends Job> within) {
+        if (!refresh()) {
+            return Collections.emptyList();
+        }
+        lock.lock();
+        try {
+            drain();
+            return first(regressions.get(metric), k, within, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static List<Entry> first(TreeSet<Entry> ranking, int k, Collection<? extends Job> within, boolean drops) {
+        Set<Job> jobs = within == null ? null : new HashSet<Job>(within);
+        List<Entry> r = new ArrayList<Entry>(Math.min(k, ranking.size()));
+        for (Entry e : ranking) {
+            if (r.size() >= k || (drops && e.change >= 0)) {
+                break;
+            }
+            if ((jobs == null || jobs.contains(e.job)) && e.job.hasPermission(Item.READ)) {
+                r.add(e);
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public void onCompleted(AbstractBuild<?,?> build, KarmaBuildAction action) {
+        if (!seeding || build.getResult() == Result.FAILURE || build.getParent().getParent() instanceof Job) {
+            // the index already has this build, or it is left out
+            return;
+        }
+        completed.add(new Completed(build.getParent(), build.getNumber(), action.counts));
+        // applied now if nobody else is busy with the rankings, else by the next to read them
+        if (seeded && lock.tryLock()) {
+            try {
+                drain();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies the queued builds. Called with the lock held.
+     */
+    private void drain() {
+        for (Completed c; (c = completed.poll()) != null; ) {
+            update(c);
+        }
+    }
+
+    /**
+     * Replaces the coverage of a job, if the build is newer, and moves it in the rankings.
+     * Called with the lock held.
+     */
+    private void update(Completed c) {
+        Job<?,?> job = c.job;
+        if (job.getParent() instanceof Job) {
+            return;
+        }
+        State previous = states.get(job);
+        if (previous != null && previous.number > c.number) {
+            return;
+        }
+        State s = new State(previous == null ? ids++ : previous.id, c.number, c.counts);
+        if (previous != null) {
+            s.before = previous.before;
+        } else if (c.read) {
+            s.before = c.before;
+        } else {
+            // ranked with no change until read
+            unread.add(job);
+            readLater();
+        }
+        remove(previous);
+        states.put(job, s);
+        rank(job, s);
+    }
+
+    private void rank(Job<?,?> job, State s) {
+        for (int m = 0; m < s.entries.length; m++) {
+            if (s.counts[2 * m + 1] == Ratio.UNSET) {
+                continue;
+            }
+            float p = Ratio.percentage(s.counts[2 * m], s.counts[2 * m + 1]);
+            float change = s.before == null || s.before[2 * m + 1] == Ratio.UNSET
+                    ? Float.NaN : p - Ratio.percentage(s.before[2 * m], s.before[2 * m + 1]);
+            s.entries[m] = new Entry(s.id, job, p, change);
+            lowest.get(m).add(s.entries[m]);
+            if (!Float.isNaN(change)) {
+                regressions.get(m).add(s.entries[m]);
+            }
+        }
+    }
+
+    private void remove(State s) {
+        if (s == null) {
+            return;
+        }
+        for (int m = 0; m < s.entries.length; m++) {
+            if (s.entries[m] != null) {
+                lowest.get(m).remove(s.entries[m]);
+                regressions.get(m).remove(s.entries[m]);
+                s.entries[m] = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the coverage before the window of the {@link #unread} jobs in the
+     * background, then ranks their changes. Called with the lock held.
+     */
+    private void readLater() {
+        if (reading || unread.isEmpty()) {
+            return;
+        }
+        reading = true;
+        final int g = generation, day = window;
+        final List<Job<?,?>> jobs = new ArrayList<Job<?,?>>(unread);
+        unread.clear();
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                Map<Job<?,?>, long[]> before = new HashMap<Job<?,?>, long[]>();
+                SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    for (Job<?,?> job : jobs) {
+                        before.put(job, before(job, day));
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to read the daily coverage of the jobs", e);
+                } finally {
+                    SecurityContextHolder.setContext(old);
+                }
+                lock.lock();
+                try {
+                    if (g != generation) {
+                        return;
+                    }
+                    reading = false;
+                    for (Job<?,?> job : jobs) {
+                        State s = states.get(job);
+                        if (s == null) {
+                            continue;
+                        }
+                        if (window != day) {
+                            // the window moved meanwhile: read again for the new one
+                            unread.add(job);
+                        } else if (before.containsKey(job)) {
+                            remove(s);
+                            s.before = before.get(job);
+                            rank(job, s);
+                        }
+                        // else reading failed: no change until the window moves
+                    }
+                    readLater();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the coverage of a job before the window starting on the given day.
+     */
+    private static long[] before(Job<?,?> job, int window) {
+        KarmaDays d = KarmaDays.of(job);
+        if (d == null) {
+            return null;
+        }
+        try {
+            return d.before(window);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the daily coverage of " + job, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the first day of the window that ends today.
+     */
+    private static int today() {
+        return KarmaDays.dayOf(System.currentTimeMillis() - (DAYS - 1) * 24L * 60 * 60 * 1000);
+    }
+
+    /**
+     * Starts reading the coverage of every job the first time, and moving the window once a day.
+     *
+     * @return whether the rankings are ready.
+     */
+    private boolean refresh() {
+        if (!seeded) {
+            seed();
+            return false;
+        }
+        if (window != today()) {
+            move();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the last coverage of every job in the background, and ranks them once all are read.
+     */
+    private void seed() {
+        final int g, day;
+        lock.lock();
+        try {
+            if (seeding) {
+                return;
+            }
+            seeding = true;
+            g = generation;
+            day = window = today();
+        } finally {
+            lock.unlock();
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                List<Completed> read = new ArrayList<Completed>();
+                SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    for (Job<?,?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+                        if (job.getParent() instanceof Job) {
+                            continue;
+                        }
+                        try {
+                            List<KarmaIndex.Record> records = KarmaIndex.of(job).read(Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+                            for (int i = records.size() - 1; i >= 0; i--) {
+                                KarmaIndex.Record r = records.get(i);
+                                if (r.result != Result.FAILURE) {
+                                    Completed c = new Completed(job, r.number, r.counts);
+                                    c.before = before(job, day);
+                                    c.read = true;
+                                    read.add(c);
+                                    break;
+                                }
+                            }
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to read the coverage index of " + job, e);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to seed the coverage leaderboard", e);
+                    // tried again on next use
+                    read = null;
+                } finally {
+                    SecurityContextHolder.setContext(old);
+                }
+                lock.lock();
+                try {
+                    if (g != generation) {
+                        // reset meanwhile, and seeded again
+                        return;
+                    }
+                    if (read == null) {
+                        seeding = false;
+                        completed.clear();
+                        return;
+                    }
+                    for (Completed c : read) {
+                        update(c);
+                    }
+                    // builds completed while reading, newer than what was read
+                    drain();
+                    seeded = true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the coverage of every job before the new window in the background, then ranks the changes again.
+     * Until then, the rankings stay those of the previous window.
+     */
+    private void move() {
+        final int g, day = today();
+        final List<Job<?,?>> jobs;
+        lock.lock();
+        try {
+            if (moving || window == day) {
+                return;
+            }
+            moving = true;
+            g = generation;
+            jobs = new ArrayList<Job<?,?>>(states.keySet());
+        } finally {
+            lock.unlock();
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                Map<Job<?,?>, long[]> before = new HashMap<Job<?,?>, long[]>();
+                SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    for (Job<?,?> job : jobs) {
+                        before.put(job, before(job, day));
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to read the daily coverage of the jobs", e);
+                } finally {
+                    SecurityContextHolder.setContext(old);
+                }
+                lock.lock();
+                try {
+                    if (g != generation) {
+                        return;
+                    }
+                    window = day;
+                    for (Map.Entry<Job<?,?>, State> e : states.entrySet()) {
+                        State s = e.getValue();
+                        remove(s);
+                        if (before.containsKey(e.getKey())) {
+                            s.before = before.get(e.getKey());
+                            unread.remove(e.getKey());
+                        } else {
+                            // got its first coverage meanwhile: read in the background
+                            s.before = null;
+                            unread.add(e.getKey());
+                        }
+                        rank(e.getKey(), s);
+                    }
+                    moving = false;
+                    readLater();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    private void remove(Job<?,?> job) {
+        lock.lock();
+        try {
+            drain();
+            unread.remove(job);
+            remove(states.remove(job));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets everything, to be seeded again on next use.
+     */
+    private void reset() {
+        lock.lock();
+        try {
+            states.clear();
+            for (int m = 0; m < lowest.size(); m++) {
+                lowest.get(m).clear();
+                regressions.get(m).clear();
+            }
+            completed.clear();
+            unread.clear();
+            generation++;
+            seeding = seeded = moving = reading = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins jenkins = Jenkins.getInstance();
+        jenkins.checkPermission(Jenkins.READ);
+        String metric = Util.fixEmpty(req.getParameter("metric"));
+        int m = metric == null ? 0 : KarmaBadge.indexOf(metric);
+        if (m < 0) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Unknown metric: " + metric);
+            return;
+        }
+        int k;
+        try {
+            k = req.getParameter("k") == null ? DEFAULT_SIZE : Math.min(Integer.parseInt(req.getParameter("k")), MAX_SIZE);
+        } catch (NumberFormatException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Not a number: " + e.getMessage());
+            return;
+        }
+        if (k < 1) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "k must be positive: " + k);
+            return;
+        }
+        List<Job> within = null;
+        String view = Util.fixEmptyAndTrim(req.getParameter("view"));
+        if (view != null) {
+            View v = jenkins.getView(view);
+            if (v == null) {
+                rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No such view: " + view);
+                return;
+            }
+            within = new ArrayList<Job>();
+            for (TopLevelItem item : v.getItems()) {
+                if (item instanceof Job) {
+                    within.add((Job) item);
+                } else if (item instanceof ItemGroup) {
+                    within.addAll(Items.getAllItems((ItemGroup<?>) item, Job.class));
+                }
+            }
+        }
+
+        List<Entry> low, drops;
+        lock.lock();
+        try {
+            low = getLowest(m, k, within);
+            drops = getRegressions(m, k, within);
+        } finally {
+            lock.unlock();
+        }
+        rsp.setContentType("application/json; charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print("{\"metric\":\"" + KarmaBadge.METRICS[m] + "\",\"days\":" + DAYS + ",\"ready\":" + isReady() + ",\"lowest\":");
+        write(w, low);
+        w.print(",\"regressions\":");
+        write(w, drops);
+        w.print("}");
+    }
+
+    private static void write(PrintWriter w, List<Entry> entries) {
+        w.print('[');
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            w.print((i > 0 ? ",{\"job\":" : "{\"job\":") + JSONUtils.quote(e.job.getFullName())
+                    + ",\"url\":" + JSONUtils.quote(e.job.getUrl())
+                    + ",\"percentage\":" + e.percentage
+                    + ",\"change\":" + (Float.isNaN(e.change) ? "null" : String.valueOf(e.change)) + "}");
+        }
+        w.print(']');
+    }
+
+    /**
+     * Drops jobs from the rankings as they are deleted.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof Job) {
+                get().remove((Job<?,?>) item);
+            } else if (item instanceof ItemGroup) {
+                get().reset();
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KarmaLeaderboard.class.getName());
+}
@@ -0,0 +1,59 @@
+package hudson.plugins.karma;
+
+import hudson.Launcher;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.model.BuildListener;
+
+import java.io.IOException;
+
+/**
+ * Combines the coverage of the configurations of a matrix build into the parent build.
+ *
+ * <p>
+ * The counters of each configuration are folded into the parent's
+ * {@link KarmaCoverageAccumulator} as the configuration finishes, from the
+ * {@link KarmaBuildAction} it just recorded, so no report is read again.
+ * Like shards, configurations are assumed to cover disjoint sets of files
+ * unless they ran the same suite; the combined ratios are sums either way.
+ */
+final class KarmaMatrixAggregator extends MatrixAggregator {
+    private final KarmaHealthReportThresholds thresholds;
+    private boolean failed;
+
+    KarmaMatrixAggregator(MatrixBuild build, Launcher launcher, BuildListener listener, KarmaHealthReportThresholds thresholds) {
+        super(build, launcher, listener);
+        this.thresholds = thresholds;
+    }
+
+    @Override
+    public boolean endRun(MatrixRun run) throws InterruptedException, IOException {
+        KarmaBuildAction a = KarmaBuildAction.of(run);
+        if (a != null) {
+            KarmaCoverageAccumulator.of(build).merge(run.getParent().getName(), new Ratio[] {
+                a.getLineCoverage(), a.getStatementCoverage(), a.getFunctionCoverage(), a.getBranchCoverage()
+            });
+            failed |= a.isFailed();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endBuild() throws InterruptedException, IOException {
+        KarmaCoverageAccumulator shards = build.getAction(KarmaCoverageAccumulator.class);
+        if (shards == null || shards.isEmpty()) {
+            return true;
+        }
+        Ratio[] ratios = shards.getRatios();
+        KarmaBuildAction action = new KarmaBuildAction(build, null, ratios[0], ratios[1], ratios[2], ratios[3], thresholds);
+        if (failed) {
+            action.setFailed();
+        }
+        action.save();
+        KarmaCoverageListener.fireRecorded(build, action);
+        listener.getLogger().println("Karma: combined the coverage of " + shards.size() + " configurations: "
+                + action.getBuildHealth().getDescription());
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+package hudson.plugins.karma;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timers of the plugin's hot paths, published by {@link KarmaMetricsAction}.
+ *
+ * <p>
+ * Each timer keeps a count, a sum and a fixed histogram in lock-free counters
+ * striped by thread, so that concurrent builds and page loads do not contend
+ * on the same cache line. Recording costs two {@link System#nanoTime()} calls
+ * and three atomic increments; the stripes are only summed when read.
+ */
+public final class KarmaMetrics {
+    /**
+     * Upper bounds of the histogram buckets, in nanoseconds. The last bucket is unbounded.
+     */
+    static final long[] BOUNDS = {
+        100000L, 500000L, 1000000L, 5000000L, 10000000L, 50000000L,
+        100000000L, 500000000L, 1000000000L, 5000000000L, 10000000000L, 30000000000L
+    };
+
+    /**
+     * Number of stripes, a power of two.
+     */
+    private static final int STRIPES = stripes();
+
+    /**
+     * Counters per stripe: count, sum and the buckets, padded to two cache lines.
+     */
+    private static final int ROW = 16;
+
+    // declared after the constants the timers need
+    private static final List<Timer> TIMERS = new ArrayList<Timer>();
+
+    public static final Timer PERFORM = timer("karma_publisher_perform", "Whole coverage publishing step of a build");
+    public static final Timer DISCOVERY = timer("karma_publisher_discovery", "Looking for the coverage reports in the workspace");
+    public static final Timer ARCHIVE = timer("karma_publisher_archive", "Copying and parsing the HTML reports, done in one pass");
+    public static final Timer LCOV = timer("karma_publisher_lcov", "Copying and parsing the lcov reports, and combining the browsers");
+    public static final Timer GRAPH = timer("karma_graph", "Trend graph requests, dataset and rendering");
+    public static final Timer GRAPH_DATASET = timer("karma_graph_dataset", "Building the dataset of a trend graph");
+    public static final Timer PORTLET_CHART = timer("karma_portlet_chart_load", "Loading the data of the dashboard trend chart");
+    public static final Timer PORTLET_GRID = timer("karma_portlet_grid_load", "Loading the data of the dashboard grid");
+    public static final Timer PORTLET_DISTRIBUTION = timer("karma_portlet_distribution_load", "Merging the digests of the dashboard distribution chart");
+    public static final Timer BUILD_HEALTH = timer("karma_build_health", "Computing the health report of a build");
+
+    private KarmaMetrics() {
+    }
+
+    private static int stripes() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < 64) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    private static Timer timer(String name, String help) {
+        Timer t = new Timer(name, help);
+        TIMERS.add(t);
+        return t;
+    }
+
+    /**
+     * All timers, in the order they are published.
+     */
+    public static List<Timer> getTimers() {
+        return Collections.unmodifiableList(TIMERS);
+    }
+
+    /**
+     * Time spent in one hot path.
+     */
+    public static final class Timer {
+        private final String name;
+        private final String help;
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * ROW);
+
+        private Timer(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHelp() {
+            return help;
+        }
+
+        /**
+         * Starts timing, to be passed to {@link #stop(long)}.
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        public void stop(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        void record(long nanos) {
+            int row = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * ROW;
+            int bucket = 0;
+            while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+                bucket++;
+            }
+            cells.incrementAndGet(row);
+            cells.addAndGet(row + 1, nanos);
+            cells.incrementAndGet(row + 2 + bucket);
+        }
+
+        /**
+         * Sums the stripes.
+         *
+         * @return the count, the sum in nanoseconds, then the count of each bucket, not cumulative.
+         */
+        public long[] snapshot() {
+            long[] r = new long[2 + BOUNDS.length + 1];
+            for (int s = 0; s < STRIPES; s++) {
+                for (int i = 0; i < r.length; i++) {
+                    r[i] += cells.get(s * ROW + i);
+                }
+            }
+            return r;
+        }
+    }
+}
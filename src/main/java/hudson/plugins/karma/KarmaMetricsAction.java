@@ -0,0 +1,80 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Publishes {@link KarmaMetrics} at <tt>/karma-metrics/</tt> in the Prometheus
+ * text format, and at <tt>/karma-metrics/json</tt>.
+ */
+@Extension
+public class KarmaMetricsAction implements RootAction {
+
+    public String getIconFileName() {
+        // not shown in the side panel
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "karma-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        for (KarmaMetrics.Timer t : KarmaMetrics.getTimers()) {
+            long[] s = t.snapshot();
+            String name = t.getName() + "_seconds";
+            w.print("# HELP " + name + " " + t.getHelp() + "\n");
+            w.print("# TYPE " + name + " histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < KarmaMetrics.BOUNDS.length; i++) {
+                cumulative += s[2 + i];
+                w.print(name + "_bucket{le=\"" + seconds(KarmaMetrics.BOUNDS[i]) + "\"} " + cumulative + "\n");
+            }
+            w.print(name + "_bucket{le=\"+Inf\"} " + s[0] + "\n");
+            w.print(name + "_sum " + seconds(s[1]) + "\n");
+            w.print(name + "_count " + s[0] + "\n");
+        }
+        w.flush();
+    }
+
+    public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        JSONObject json = new JSONObject();
+        for (KarmaMetrics.Timer t : KarmaMetrics.getTimers()) {
+            long[] s = t.snapshot();
+            JSONObject buckets = new JSONObject();
+            for (int i = 0; i < KarmaMetrics.BOUNDS.length; i++) {
+                buckets.put(seconds(KarmaMetrics.BOUNDS[i]), s[2 + i]);
+            }
+            buckets.put("+Inf", s[2 + KarmaMetrics.BOUNDS.length]);
+            JSONObject timer = new JSONObject();
+            timer.put("count", s[0]);
+            timer.put("sum", s[1] / 1e9);
+            timer.put("buckets", buckets);
+            json.put(t.getName(), timer);
+        }
+        rsp.setContentType("application/json; charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(json.toString());
+        w.flush();
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
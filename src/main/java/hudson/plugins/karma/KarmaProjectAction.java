@@ -8,6 +8,7 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import java.io.IOException;
+import java.util.Collections;
 
 /**
  * Project view extension by Karma plugin.
@@ -40,13 +41,31 @@ public final class KarmaProjectAction implements Action {
         for( AbstractBuild<?,?> b = project.getLastBuild(); b!=null; b=b.getPreviousBuild()) {
             if(b.getResult()== Result.FAILURE)
                 continue;
-            KarmaBuildAction r = b.getAction(KarmaBuildAction.class);
+            KarmaBuildAction r = KarmaBuildAction.of(b);
             if(r!=null)
                 return r;
         }
         return null;
     }
 
+    /**
+     * Exports the coverage history of this project from its {@link KarmaIndex}.
+     *
+     * @see KarmaHistory
+     */
+    public void doHistory(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        KarmaHistory.write(req, rsp, Collections.singleton(project));
+    }
+
+    /**
+     * Serves the coverage badge of this project.
+     *
+     * @see KarmaBadge
+     */
+    public void doBadge(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        KarmaBadge.get().serve(this, req, rsp);
+    }
+
     public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
        if (getLastResult() != null)
           getLastResult().doGraph(req,rsp);
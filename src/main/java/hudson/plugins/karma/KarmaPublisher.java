@@ -4,6 +4,9 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
@@ -13,9 +16,14 @@ import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
+import hudson.util.NullStream;
 
 import net.sf.json.JSONObject;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.File;
@@ -23,22 +31,50 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * {@link Publisher} that captures Karma coverage reports.
  *
  * @author Kohsuke Kawaguchi
  */
-public class KarmaPublisher extends Recorder {
+public class KarmaPublisher extends Recorder implements MatrixAggregatable {
     /**
      * Relative path to the Karma XML file inside the workspace.
      */
     public String includes;
 
+    /**
+     * Ant-style pattern of the lcov reports, one per browser. Can be empty.
+     *
+     * When set, the coverage of all browsers is combined line by line from these reports.
+     */
+    public String lcovIncludes;
+
+    /**
+     * Ant-style patterns, separated by commas, of the source files left out of the lcov reports,
+     * e.g. <tt>**&#47;*.spec.js</tt>. Can be empty.
+     */
+    public String excludes;
+
+    /**
+     * Git revision to compute the coverage of changed lines against, e.g. <tt>origin/master</tt>. Can be empty.
+     *
+     * Only used together with {@link #lcovIncludes}, which provides the line level data.
+     */
+    public String diffBaseRef;
+
+    /**
+     * Number of the last builds with coverage that keep their full reports. 0 keeps them all.
+     *
+     * Older builds are compacted down to their summary and per-file counters by {@link KarmaCompaction}.
+     */
+    public int keepReports;
+
     /**
      * Rule to be enforced. Can be null.
      *
-     * TODO: define a configuration mechanism.
+     * Configured as a list of {@link ThresholdRule.Threshold}s.
      */
     public Rule rule;
 
@@ -83,19 +119,66 @@ public class KarmaPublisher extends Recorder {
 	}
 	
     /**
-     * save karma reports from the workspace to build folder  
+     * save karma reports from the workspace to build folder and parse them on the way.
      */
-	protected static void saveKarmaCoverageReports(FilePath folder, FilePath[] files) throws IOException, InterruptedException {
+	protected static Ratio[] saveKarmaCoverageReports(FilePath folder, FilePath[] files) throws IOException, InterruptedException {
 		folder.mkdirs();
+		Ratio[] ratios = null;
 		for (int i = 0; i < files.length; i++) {
 			String name = "coverage" + (i > 0 ? i : "") + ".xml";
-			FilePath src = files[i];
-			FilePath dst = folder.child(name);
-			src.copyTo(dst);
+			ratios = saveKarmaCoverageReport(files[i], folder.child(name), ratios);
+		}
+		return ratios;
+	}
+
+    /**
+     * save one karma report to the build folder and parse it on the way.
+     *
+     * The report is read from the workspace exactly once: the bytes copied into the
+     * build folder are teed into the ratio parser, so there is no second pass over
+     * the (possibly remote) report once it has been archived.
+     */
+	protected static Ratio[] saveKarmaCoverageReport(FilePath src, FilePath dst, Ratio[] ratios) throws IOException, InterruptedException {
+		TeeInputStream in = new TeeInputStream(src.read(), dst.write(), true);
+		try {
+			// the parser closes its reader, and stops once it has found all ratios
+			ratios = KarmaBuildAction.loadRatios(new CloseShieldInputStream(in), ratios);
+			// finish archiving whatever the parser did not need
+			IOUtils.copy(in, new NullStream());
+		} finally {
+			in.close();
 		}
+		return ratios;
+	}
+
+    /**
+     * save the lcov reports of each browser to the build folder and parse the records the filter accepts on the way.
+     */
+	protected static List<LineCoverageReport> saveLcovReports(FilePath folder, FilePath[] files, LcovParser.Filter filter) throws IOException, InterruptedException {
+		folder.mkdirs();
+		List<LineCoverageReport> reports = new ArrayList<LineCoverageReport>(files.length);
+		for (int i = 0; i < files.length; i++) {
+			FilePath dst = folder.child("lcov" + (i > 0 ? i : "") + ".info");
+			TeeInputStream in = new TeeInputStream(files[i].read(), dst.write(), true);
+			try {
+				reports.add(LcovParser.parse(in, filter));
+			} finally {
+				in.close();
+			}
+		}
+		return reports;
 	}
 
     public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        long start = KarmaMetrics.PERFORM.start();
+        try {
+            return publish(build, listener);
+        } finally {
+            KarmaMetrics.PERFORM.stop(start);
+        }
+    }
+
+    private boolean publish(AbstractBuild<?,?> build, BuildListener listener) throws InterruptedException, IOException {
         EnvVars env = build.getEnvironment(listener);
         env.overrideAll(build.getBuildVariables());
         
@@ -104,16 +187,32 @@ public class KarmaPublisher extends Recorder {
         final PrintStream logger = listener.getLogger();
         logger.println("logger: " + logger);
         logger.println("listener: "+listener);
+        long discovery = KarmaMetrics.DISCOVERY.start();
         FilePath[] reports;
-        if (includes == null || includes.trim().length() == 0) {
-            logger.println("Karma: looking for coverage reports in the entire workspace: " + build.getWorkspace().getRemote());
-            reports = locateKarmaCoverageReports(build.getWorkspace(), "coverage");
-        } else {
-            logger.println("Karma: looking for coverage reports in the provided path: " + includes );
-            reports = locateKarmaCoverageReports(build.getWorkspace(), includes);
+        FilePath[] lcovReports = new FilePath[0];
+        try {
+            if (includes == null || includes.trim().length() == 0) {
+                logger.println("Karma: looking for coverage reports in the entire workspace: " + build.getWorkspace().getRemote());
+                reports = locateKarmaCoverageReports(build.getWorkspace(), "coverage");
+            } else {
+                logger.println("Karma: looking for coverage reports in the provided path: " + includes );
+                reports = locateKarmaCoverageReports(build.getWorkspace(), includes);
+            }
+
+            if (lcovIncludes != null && lcovIncludes.trim().length() > 0) {
+                logger.println("Karma: looking for lcov reports in the provided path: " + env.expand(lcovIncludes));
+                lcovReports = build.getWorkspace().list(env.expand(lcovIncludes));
+            }
+        } finally {
+            KarmaMetrics.DISCOVERY.stop(discovery);
         }
-        
-        if (reports.length == 0) {
+
+        final KarmaCoverageAccumulator shards = build.getAction(KarmaCoverageAccumulator.class);
+
+        // summary printed by the text-summary reporter, if any
+        final Ratio[] console = KarmaConsoleFilter.getRatios(build);
+
+        if (reports.length == 0 && lcovReports.length == 0 && (shards == null || shards.isEmpty()) && console == null) {
             if(build.getResult().isWorseThan(Result.UNSTABLE))
                 return true;
             
@@ -128,16 +227,95 @@ public class KarmaPublisher extends Recorder {
         }
         
         FilePath karmafolder = new FilePath(getKarmaReport(build));
-        saveKarmaCoverageReports(karmafolder, reports);
-        logger.println("Karma: stored " + reports.length + " report files in the build folder: "+ karmafolder);
+        Ratio[] ratios = null;
+        long archive = KarmaMetrics.ARCHIVE.start();
+        try {
+            if (shards == null || shards.isEmpty()) {
+                if (reports.length > 0) {
+                    ratios = saveKarmaCoverageReports(karmafolder, reports);
+                    logger.println("Karma: stored " + reports.length + " report files in the build folder: "+ karmafolder);
+                } else if (console != null) {
+                    logger.println("Karma: using the coverage summary printed to the console");
+                    ratios = console;
+                }
+            } else {
+                // shards already published their reports while the build ran; only pick up the stragglers
+                int stored = 0;
+                for (FilePath f : reports) {
+                    if (!shards.isMerged(f.getRemote())) {
+                        FilePath dst = karmafolder.child("coverage" + (stored > 0 ? stored : "") + ".xml");
+                        karmafolder.mkdirs();
+                        shards.merge(f.getRemote(), saveKarmaCoverageReport(f, dst, null));
+                        stored++;
+                    }
+                }
+                logger.println("Karma: stored " + stored + " report files in the build folder: "+ karmafolder);
+                logger.println("Karma: combining " + shards.size() + " coverage reports published by shards");
+                ratios = shards.getRatios();
+            }
+        } finally {
+            KarmaMetrics.ARCHIVE.stop(archive);
+        }
 
-        final KarmaBuildAction action = KarmaBuildAction.load(build, rule, healthReports, reports);
+        FileCoverageTable files = null;
+        if (lcovReports.length > 0) {
+            // line level data of every browser: replaces the totals of the single HTML report
+            long lcov = KarmaMetrics.LCOV.start();
+            try {
+                PathMatcher excluded = PathMatcher.parse(env.expand(excludes));
+                List<LineCoverageReport> browsers = saveLcovReports(karmafolder, lcovReports, excluded);
+                if (excluded.size() > 0) {
+                    logger.println("Karma: left out the source files matching " + excluded.size() + " exclude patterns");
+                }
+                logger.println("Karma: stored " + lcovReports.length + " lcov reports in the build folder: "+ karmafolder);
+                LineCoverageReport union = LineCoverageReport.union(browsers);
+                ratios = union.getRatios();
+                LineHitsStore.write(new File(getKarmaReport(build), LineHitsStore.FILE_NAME), union.getFiles());
+                files = FileCoverageTable.of(union.getFiles());
+                files.write(new File(getKarmaReport(build), FileCoverageTable.FILE_NAME));
+                if (browsers.size() > 1) {
+                    Ratio[] common = LineCoverageReport.intersection(browsers).getRatios();
+                    logger.println("Karma: lines covered in any browser: " + ratios[3] + ", in every browser: " + common[3]);
+                }
+            } finally {
+                KarmaMetrics.LCOV.stop(lcov);
+            }
+        }
+
+        final KarmaBuildAction action = new KarmaBuildAction(build, rule, ratios[0], ratios[1], ratios[2], ratios[3], healthReports);
+        KarmaBaseline.Resolved baseline = KarmaBaseline.resolve(build, env);
+        if (baseline != null) {
+            action.setBaseline(baseline.baseline);
+            logger.println("Karma: comparing with the coverage of the target branch, " + baseline.baseline.getJob() + " #" + baseline.baseline.getNumber());
+        }
+        if (files != null) {
+            action.setRegressions(findRegressions(baseline == null ? KarmaBuildAction.getPreviousResult(build) : KarmaBuildAction.of(baseline.build), files));
+        }
+        if (lcovReports.length > 0 && diffBaseRef != null && diffBaseRef.trim().length() > 0) {
+            String base = env.expand(diffBaseRef).trim();
+            try {
+                DiffCoverage.Result diff = build.getWorkspace().act(new DiffCoverage(base, env.expand(lcovIncludes), env.expand(excludes)));
+                action.setDiffCoverage(diff);
+                logger.println("Karma: coverage of the lines changed since " + base + ": " + diff.getCoverage());
+            } catch (IOException e) {
+                // a shallow clone or unknown ref should not fail the build
+                logger.println("Karma: could not compute the coverage of the lines changed since " + base + ": " + e.getMessage());
+            }
+        }
         
         logger.println("Karma: " + action.getBuildHealth().getDescription());
 
-        build.getActions().add(action);
-
         final KarmaCoverageReport result = action.getResult();
+        if (result != null && rule != null) {
+            rule.enforce(result, listener);
+            if (result.isFailed()) {
+                // the report is only weakly referenced, keep the outcome with the build
+                action.setFailed();
+            }
+        }
+        // kept out of build.xml, and only read back when asked for
+        action.save();
+        KarmaCoverageListener.fireRecorded(build, action);
         if (result == null) {
             logger.println("Karma: Could not parse coverage results. Setting Build to failure.");
             build.setResult(Result.FAILURE);
@@ -149,6 +327,33 @@ public class KarmaPublisher extends Recorder {
         return true;
     }
 
+    /**
+     * Compares the per-file coverage with an earlier build: the previous one that has it, or the baseline.
+     */
+    private static List<FileDelta> findRegressions(KarmaBuildAction previous, FileCoverageTable files) throws IOException {
+        if (previous == null) {
+            return null;
+        }
+        // only the hashes and counters of the previous build are needed, not its paths
+        FileCoverageTable before = FileCoverageTable.read(new File(getKarmaReport(previous.getBuild()), FileCoverageTable.FILE_NAME), false);
+        if (before == null) {
+            return null;
+        }
+        return FileCoverageTable.regressions(before, files, TOP_REGRESSIONS);
+    }
+
+    /**
+     * Number of per-file regressions kept with each build.
+     */
+    private static final int TOP_REGRESSIONS = 10;
+
+    /**
+     * Combines the coverage of the configurations into the matrix build.
+     */
+    public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
+        return new KarmaMatrixAggregator(build, launcher, listener, healthReports);
+    }
+
     @Override
     public Action getProjectAction(AbstractProject<?, ?> project) {
         return new KarmaProjectAction(project);
@@ -205,6 +410,10 @@ public class KarmaPublisher extends Recorder {
                 pub.healthReports.setMaxBranch(50);
             }
             // end ugly hack
+            List<ThresholdRule.Threshold> thresholds = req.bindJSONToList(ThresholdRule.Threshold.class, json.get("thresholds"));
+            if (!thresholds.isEmpty()) {
+                pub.rule = new ThresholdRule(thresholds);
+            }
             return pub;
         }
     }
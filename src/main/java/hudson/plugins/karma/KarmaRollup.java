@@ -0,0 +1,428 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.Job;
+import hudson.model.TopLevelItem;
+import hudson.model.View;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pooled coverage of the last recorded build of every job, kept for each folder
+ * up to the root and for the views that were asked for.
+ *
+ * <p>
+ * The counters are seeded once from the {@link KarmaIndex} of every job, in the
+ * background, then kept up to date as builds complete: the change of the job's
+ * counters is added to each folder on the way up to the root, and to the cached
+ * views that contain the job. Reading the coverage of a folder or view is then
+ * a lookup. Completed builds are only queued, and applied by whoever holds the
+ * lock next, so that finishing a build never waits for the roll-ups.
+ *
+ * <p>
+ * Ratios are pooled, i.e. covered and total counts are summed, so large jobs
+ * weigh more than small ones. Configurations of matrix projects are left out,
+ * since the matrix build already combines them.
+ */
+@Extension
+public final class KarmaRollup extends KarmaCoverageListener {
+
+    /**
+     * How long the jobs of a view are trusted before they are collected again,
+     * since a view can be reconfigured without any event.
+     */
+    private static final long VIEW_TTL = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Latest coverage of each job.
+     */
+    private final Map<Job<?,?>, Latest> latest = new HashMap<Job<?,?>, Latest>();
+
+    private final Map<ItemGroup<?>, Totals> groups = new HashMap<ItemGroup<?>, Totals>();
+
+    private final Map<View, ViewTotals> views = new WeakHashMap<View, ViewTotals>();
+
+    /**
+     * Guards the counters.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Builds completed since the counters were last brought up to date.
+     */
+    private final Queue<Latest> completed = new ConcurrentLinkedQueue<Latest>();
+
+    /**
+     * Whether the seeding was started, and whether it is over.
+     */
+    private volatile boolean seeding, seeded;
+
+    /**
+     * Incremented on reset, so that a seeding started before is dropped.
+     */
+    private int generation;
+
+    public static KarmaRollup get() {
+        return all().get(KarmaRollup.class);
+    }
+
+    /**
+     * Pooled counters of a set of jobs.
+     */
+    public static class Totals {
+        /**
+         * Summed as in {@link KarmaCoverageObject#counts}, with ratios that were never set counting as 0/0.
+         */
+        final long[] counts = new long[8];
+        int jobs;
+
+        void add(long[] delta, int jobs) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += delta[i];
+            }
+            this.jobs += jobs;
+        }
+
+        /**
+         * Number of jobs with coverage.
+         */
+        public int getJobCount() {
+            return jobs;
+        }
+
+        public Ratio getLineCoverage() {
+            return new Ratio(counts[2 * KarmaCoverageObject.LINE], counts[2 * KarmaCoverageObject.LINE + 1]);
+        }
+
+        public Ratio getStatementCoverage() {
+            return new Ratio(counts[2 * KarmaCoverageObject.STATEMENT], counts[2 * KarmaCoverageObject.STATEMENT + 1]);
+        }
+
+        public Ratio getFunctionCoverage() {
+            return new Ratio(counts[2 * KarmaCoverageObject.FUNCTION], counts[2 * KarmaCoverageObject.FUNCTION + 1]);
+        }
+
+        public Ratio getBranchCoverage() {
+            return new Ratio(counts[2 * KarmaCoverageObject.BRANCH], counts[2 * KarmaCoverageObject.BRANCH + 1]);
+        }
+
+        Totals copy() {
+            Totals t = new Totals();
+            t.add(counts, jobs);
+            return t;
+        }
+    }
+
+    private static final class ViewTotals extends Totals {
+        final Set<Job<?,?>> members = new HashSet<Job<?,?>>();
+        final long collected = System.currentTimeMillis();
+    }
+
+    private static final class Latest {
+        final Job<?,?> job;
+        final int number;
+        final long[] counts;
+
+        Latest(Job<?,?> job, int number, long[] counts) {
+            this.job = job;
+            this.number = number;
+            this.counts = pooled(counts);
+        }
+    }
+
+    /**
+     * Gets the coverage of the jobs in the given folder and below, or of all jobs for {@link Jenkins}.
+     *
+     * @return null while the counters are being seeded.
+     */
+    public Totals of(ItemGroup<?> group) {
+        if (!seeded) {
+            seed();
+            return null;
+        }
+        lock.lock();
+        try {
+            drain();
+            Totals t = groups.get(group);
+            return t == null ? new Totals() : t.copy();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the coverage of the jobs of the given view, including those in its folders.
+     *
+     * @return null while the counters are being seeded.
+     */
+    public Totals of(View view) {
+        if (!seeded) {
+            seed();
+            return null;
+        }
+        lock.lock();
+        try {
+            drain();
+            ViewTotals t = views.get(view);
+            if (t == null || System.currentTimeMillis() - t.collected > VIEW_TTL) {
+                t = new ViewTotals();
+                SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    for (TopLevelItem item : view.getItems()) {
+                        if (item instanceof Job) {
+                            t.members.add((Job<?,?>) item);
+                        } else if (item instanceof ItemGroup) {
+                            for (Job<?,?> job : Items.getAllItems((ItemGroup<?>) item, Job.class)) {
+                                t.members.add(job);
+                            }
+                        }
+                    }
+                } finally {
+                    SecurityContextHolder.setContext(old);
+                }
+                for (Job<?,?> job : t.members) {
+                    Latest l = latest.get(job);
+                    if (l != null) {
+                        t.add(l.counts, 1);
+                    }
+                }
+                views.put(view, t);
+            }
+            return t.copy();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onCompleted(AbstractBuild<?,?> build, KarmaBuildAction action) {
+        if (!seeding || build.getParent().getParent() instanceof Job) {
+            // the index already has this build, or it is a matrix configuration
+            return;
+        }
+        completed.add(new Latest(build.getParent(), build.getNumber(), action.counts));
+        // applied now if nobody else is busy with the counters, else by the next to read them
+        if (seeded && lock.tryLock()) {
+            try {
+                drain();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies the queued builds. Called with the lock held.
+     */
+    private void drain() {
+        for (Latest l; (l = completed.poll()) != null; ) {
+            update(l);
+        }
+    }
+
+    /**
+     * Replaces the latest coverage of a job, if the build is newer, and propagates the change.
+     */
+    private void update(Latest l) {
+        Job<?,?> job = l.job;
+        if (job.getParent() instanceof Job) {
+            return;
+        }
+        Latest previous = latest.get(job);
+        if (previous != null && previous.number > l.number) {
+            return;
+        }
+        latest.put(job, l);
+        long[] delta = l.counts.clone();
+        if (previous != null) {
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] -= previous.counts[i];
+            }
+        }
+        propagate(job, delta, previous == null ? 1 : 0);
+    }
+
+    /**
+     * Adds a change to the ancestors of a job and to the cached views that contain it.
+     */
+    private void propagate(Job<?,?> job, long[] delta, int jobs) {
+        ItemGroup<?> g = job.getParent();
+        while (true) {
+            Totals t = groups.get(g);
+            if (t == null) {
+                groups.put(g, t = new Totals());
+            }
+            t.add(delta, jobs);
+            if (!(g instanceof Item)) {
+                break;
+            }
+            g = ((Item) g).getParent();
+        }
+        for (ViewTotals v : views.values()) {
+            if (v.members.contains(job)) {
+                v.add(delta, jobs);
+            }
+        }
+    }
+
+    private void remove(Job<?,?> job) {
+        Latest l = latest.remove(job);
+        if (l != null) {
+            long[] delta = new long[l.counts.length];
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] = -l.counts[i];
+            }
+            propagate(job, delta, -1);
+        }
+    }
+
+    /**
+     * Starts reading the last record of every job's index in the background, the first time the roll-ups are needed.
+     *
+     * <p>
+     * Indices that were never written are written from the builds, which can take long,
+     * so the counters are only locked to add what was read.
+     */
+    private void seed() {
+        final int g;
+        lock.lock();
+        try {
+            if (seeding) {
+                return;
+            }
+            seeding = true;
+            g = generation;
+        } finally {
+            lock.unlock();
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                List<Latest> read = new ArrayList<Latest>();
+                SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    for (Job<?,?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+                        try {
+                            List<KarmaIndex.Record> records = KarmaIndex.of(job).read(Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+                            if (!records.isEmpty()) {
+                                KarmaIndex.Record r = records.get(records.size() - 1);
+                                read.add(new Latest(job, r.number, r.counts));
+                            }
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to read the coverage index of " + job, e);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to seed the coverage roll-ups", e);
+                    // tried again on next use
+                    read = null;
+                } finally {
+                    SecurityContextHolder.setContext(old);
+                }
+                lock.lock();
+                try {
+                    if (g != generation) {
+                        // reset meanwhile, and seeded again
+                        return;
+                    }
+                    if (read == null) {
+                        seeding = false;
+                        completed.clear();
+                        return;
+                    }
+                    for (Latest l : read) {
+                        update(l);
+                    }
+                    // builds completed while reading, newer than what was read
+                    drain();
+                    seeded = true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets everything, to be seeded again on next use.
+     */
+    private void reset() {
+        lock.lock();
+        try {
+            latest.clear();
+            groups.clear();
+            views.clear();
+            completed.clear();
+            generation++;
+            seeding = seeded = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ratios that were never set count as 0/0 once pooled.
+     */
+    private static long[] pooled(long[] counts) {
+        long[] c = counts.clone();
+        for (int i = 1; i < c.length; i += 2) {
+            if (c[i] == Ratio.UNSET) {
+                c[i - 1] = 0;
+                c[i] = 0;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Follows jobs as they are deleted or moved.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            KarmaRollup r = get();
+            if (item instanceof Job) {
+                r.lock.lock();
+                try {
+                    r.drain();
+                    r.remove((Job<?,?>) item);
+                } finally {
+                    r.lock.unlock();
+                }
+            } else if (item instanceof ItemGroup) {
+                r.reset();
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            get().reset();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KarmaRollup.class.getName());
+}
@@ -0,0 +1,101 @@
+package hudson.plugins.karma;
+
+import hudson.Extension;
+import hudson.model.AbstractItem;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.ListView;
+import hudson.model.ModelObject;
+import hudson.model.TransientViewActionFactory;
+import hudson.model.View;
+import jenkins.model.TransientActionFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Coverage of all the jobs of a folder or list view, read from {@link KarmaRollup}.
+ *
+ * <p>
+ * The totals pool every job of the folder or view, including the ones the user
+ * cannot see, and are shown to anyone who can read the folder or view.
+ */
+public final class KarmaRollupAction implements Action {
+    /**
+     * The folder or view.
+     */
+    public final ModelObject owner;
+
+    private final ItemGroup<?> group;
+    private final View view;
+
+    KarmaRollupAction(AbstractItem folder) {
+        this.owner = folder;
+        this.group = (ItemGroup<?>) folder;
+        this.view = null;
+    }
+
+    KarmaRollupAction(View view) {
+        this.owner = view;
+        this.group = null;
+        this.view = view;
+    }
+
+    public String getIconFileName() {
+        return "graph.gif";
+    }
+
+    public String getDisplayName() {
+        return Messages.KarmaRollupAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "karma";
+    }
+
+    /**
+     * Gets the totals, or null while they are being collected.
+     */
+    public KarmaRollup.Totals getTotals() {
+        KarmaRollup r = KarmaRollup.get();
+        if (view != null) {
+            view.checkPermission(View.READ);
+            return r.of(view);
+        }
+        ((AbstractItem) owner).checkPermission(Item.READ);
+        return r.of(group);
+    }
+
+    /**
+     * Adds the action to folders, but not to matrix projects, which are item groups too.
+     */
+    @Extension
+    public static final class FolderFactory extends TransientActionFactory<AbstractItem> {
+        @Override
+        public Class<AbstractItem> type() {
+            return AbstractItem.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(AbstractItem target) {
+            if (target instanceof ItemGroup && !(target instanceof Job)) {
+                return Collections.singleton(new KarmaRollupAction(target));
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    @Extension
+    public static final class ViewFactory extends TransientViewActionFactory {
+        @Override
+        public List<Action> createFor(View v) {
+            if (v instanceof ListView) {
+                return Collections.<Action>singletonList(new KarmaRollupAction(v));
+            }
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package hudson.plugins.karma;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Build step that publishes the coverage reports of one shard of a Karma suite
+ * as soon as that shard is done.
+ *
+ * <p>
+ * Reports are archived and parsed right away and merged into the build's
+ * {@link KarmaCoverageAccumulator}, so {@link KarmaPublisher} only has to
+ * combine the totals at the end of the build.
+ */
+public class KarmaShardPublisher extends Builder {
+    /**
+     * Name of the shard, used for the folder its reports are stored in.
+     */
+    public final String shard;
+
+    /**
+     * Ant-style pattern of the shard's Karma HTML reports inside the workspace.
+     */
+    public final String includes;
+
+    @DataBoundConstructor
+    public KarmaShardPublisher(String shard, String includes) {
+        this.shard = shard;
+        this.includes = includes;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        EnvVars env = build.getEnvironment(listener);
+        env.overrideAll(build.getBuildVariables());
+
+        final PrintStream logger = listener.getLogger();
+        final String name = getShardName(env.expand(shard));
+        FilePath[] reports = KarmaPublisher.locateKarmaCoverageReports(build.getWorkspace(), env.expand(includes));
+        if (reports.length == 0) {
+            logger.println("Karma: no coverage files found for shard " + name);
+            return true;
+        }
+
+        FilePath folder = new FilePath(KarmaPublisher.getKarmaReport(build)).child("shards").child(name);
+        folder.mkdirs();
+        KarmaCoverageAccumulator accumulator = KarmaCoverageAccumulator.of(build);
+        int published = 0;
+        for (int i = 0; i < reports.length; i++) {
+            String path = reports[i].getRemote();
+            if (accumulator.isMerged(name, path)) {
+                logger.println("Karma: WARNING: skipping " + path + ", already published by shard " + name);
+                continue;
+            }
+            FilePath dst = folder.child("coverage" + (i > 0 ? i : "") + ".xml");
+            if (accumulator.merge(name, path, KarmaPublisher.saveKarmaCoverageReport(reports[i], dst, null))) {
+                published++;
+            } else {
+                // the same shard ran concurrently and got there first
+                logger.println("Karma: WARNING: not counting " + path + ", already published by shard " + name);
+            }
+        }
+        logger.println("Karma: published " + published + " report files of shard " + name);
+        return true;
+    }
+
+    private static String getShardName(String shard) {
+        if (shard == null || shard.trim().length() == 0) {
+            return "default";
+        }
+        return shard.trim().replaceAll("[^\\w.-]", "_");
+    }
+
+    @Extension
+    public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
+        public String getDisplayName() {
+            return Messages.KarmaShardPublisher_DisplayName();
+        }
+
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package hudson.plugins.karma;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming parser of the lcov reports written by the <tt>lcov</tt> reporter of karma-coverage.
+ *
+ * <p>
+ * Only the records needed for {@link FileCoverage} are read:
+ * <pre>
+ * SF:&lt;path&gt;
+ * FN:&lt;line&gt;,&lt;name&gt;
+ * FNDA:&lt;hits&gt;,&lt;name&gt;
+ * DA:&lt;line&gt;,&lt;hits&gt;
+ * BRDA:&lt;line&gt;,&lt;block&gt;,&lt;branch&gt;,&lt;taken or -&gt;
+ * end_of_record
+ * </pre>
+ */
+public final class LcovParser {
+
+    private LcovParser() {
+    }
+
+    /**
+     * Selects the source files to read from a report.
+     */
+    public interface Filter {
+        boolean accept(String path);
+    }
+
+    /**
+     * Parses a whole lcov report. The stream is left open.
+     */
+    public static LineCoverageReport parse(InputStream in) throws IOException {
+        return parse(in, null);
+    }
+
+    /**
+     * Parses the records of the accepted source files of an lcov report,
+     * skipping over the others. The stream is left open.
+     */
+    public static LineCoverageReport parse(InputStream in, Filter filter) throws IOException {
+        LineCoverageReport report = new LineCoverageReport();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+
+        FileCoverage file = null;
+        Map<String, Integer> functions = new HashMap<String, Integer>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("SF:")) {
+                String path = line.substring(3).trim();
+                file = filter == null || filter.accept(path) ? new FileCoverage(path) : null;
+                functions.clear();
+            } else if (file == null) {
+                continue;
+            } else if (line.startsWith("DA:")) {
+                int comma = line.indexOf(',', 3);
+                if (comma < 0) continue;
+                int n = parseInt(line, 3, comma);
+                if (n < 0) continue;
+                file.hit(n, parseHits(line, comma + 1));
+            } else if (line.startsWith("FN:")) {
+                int comma = line.indexOf(',', 3);
+                if (comma < 0) continue;
+                String name = line.substring(comma + 1);
+                if (!functions.containsKey(name)) {
+                    functions.put(name, file.functions++);
+                }
+            } else if (line.startsWith("FNDA:")) {
+                int comma = line.indexOf(',', 5);
+                if (comma < 0) continue;
+                Integer index = functions.get(line.substring(comma + 1));
+                if (index != null && isHit(line, 5)) {
+                    file.coveredFunctions.set(index);
+                }
+            } else if (line.startsWith("BRDA:")) {
+                int comma = line.lastIndexOf(',');
+                int index = file.branches++;
+                if (comma > 5 && isHit(line, comma + 1)) {
+                    file.coveredBranches.set(index);
+                }
+            } else if (line.startsWith("end_of_record")) {
+                report.add(file);
+                file = null;
+            }
+        }
+        if (file != null) {
+            // truncated report, keep what we have
+            report.add(file);
+        }
+        return report;
+    }
+
+    /**
+     * Whether the hit count starting at the given position is positive
+     * ("-" and "0" are not).
+     */
+    private static boolean isHit(String line, int start) {
+        for (int i = start; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == ',') return false;
+            if (c >= '1' && c <= '9') return true;
+            if (c != '0') return false;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the hit count starting at the given position, capped to an int.
+     */
+    private static int parseHits(String line, int start) {
+        long n = 0;
+        for (int i = start; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') break;
+            n = Math.min(n * 10 + (c - '0'), Integer.MAX_VALUE);
+        }
+        return (int) n;
+    }
+
+    private static int parseInt(String line, int start, int end) {
+        if (start >= end) return -1;
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+}
@@ -0,0 +1,108 @@
+package hudson.plugins.karma;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line level coverage of a whole report, one {@link FileCoverage} per source file.
+ *
+ * <p>
+ * Karma writes one report per browser. Adding up their ratios would count a
+ * line covered in two browsers twice, so the reports are combined file by file
+ * instead: the {@link #union(List) union} is what any browser covered, the
+ * {@link #intersection(List) intersection} what every browser covered.
+ *
+ * @see LcovParser
+ */
+public final class LineCoverageReport {
+    private final Map<String, FileCoverage> files = new LinkedHashMap<String, FileCoverage>();
+
+    public Collection<FileCoverage> getFiles() {
+        return files.values();
+    }
+
+    public FileCoverage getFile(String path) {
+        return files.get(path);
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * Adds a file. A file already in this report is merged with it.
+     */
+    public void add(FileCoverage file) {
+        FileCoverage existing = files.get(file.getPath());
+        if (existing == null) {
+            files.put(file.getPath(), file);
+        } else {
+            existing.or(file);
+        }
+    }
+
+    /**
+     * Gets the totals of this report as ratios, in the order
+     * {@link KarmaBuildAction#loadRatios} reads them off the HTML report:
+     * statements, branches, functions and lines.
+     *
+     * <p>
+     * lcov does not carry statements, so the statement ratio is the line ratio.
+     */
+    public Ratio[] getRatios() {
+        long lines = 0, coveredLines = 0, functions = 0, coveredFunctions = 0, branches = 0, coveredBranches = 0;
+        for (FileCoverage f : files.values()) {
+            lines += f.getLineCount();
+            coveredLines += f.getCoveredLineCount();
+            functions += f.getFunctionCount();
+            coveredFunctions += f.getCoveredFunctionCount();
+            branches += f.getBranchCount();
+            coveredBranches += f.getCoveredBranchCount();
+        }
+        return new Ratio[] {
+            new Ratio(coveredLines, lines),
+            new Ratio(coveredBranches, branches),
+            new Ratio(coveredFunctions, functions),
+            new Ratio(coveredLines, lines)
+        };
+    }
+
+    /**
+     * Combines the reports of several browsers into what was covered in any of them.
+     */
+    public static LineCoverageReport union(List<LineCoverageReport> reports) {
+        LineCoverageReport r = new LineCoverageReport();
+        for (LineCoverageReport report : reports) {
+            for (FileCoverage f : report.files.values()) {
+                FileCoverage existing = r.files.get(f.getPath());
+                if (existing == null) {
+                    r.files.put(f.getPath(), f.copy());
+                } else {
+                    existing.or(f);
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Combines the reports of several browsers into what was covered in all of them.
+     * A file missing from one of the reports counts as not covered at all there.
+     */
+    public static LineCoverageReport intersection(List<LineCoverageReport> reports) {
+        LineCoverageReport r = union(reports);
+        for (LineCoverageReport report : reports) {
+            for (FileCoverage f : r.files.values()) {
+                FileCoverage other = report.files.get(f.getPath());
+                if (other == null) {
+                    f.clearCovered();
+                } else {
+                    f.and(other);
+                }
+            }
+        }
+        return r;
+    }
+}
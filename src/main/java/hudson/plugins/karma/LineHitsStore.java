@@ -0,0 +1,264 @@
+package hudson.plugins.karma;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Line hit counts of every source file of a build, stored in the build's <tt>karma</tt> folder.
+ *
+ * <p>
+ * Each file is stored as runs of consecutive instrumented lines with the same
+ * hit count, every run being three varints: the gap since the end of the
+ * previous run, its length and the hit count. Most sources compress to a few
+ * bytes per run this way. An index of paths and offsets at the end of the file
+ * lets {@link #read(int)} decode just the file being viewed.
+ *
+ * <pre>
+ * "KLH1"
+ * for each file: varint runs, runs * (varint gap, varint length, varint hits)
+ * index: int count, count * (UTF path, long offset)
+ * long offset of index
+ * </pre>
+ */
+public final class LineHitsStore {
+
+    /**
+     * Name of the store inside the build's <tt>karma</tt> folder.
+     */
+    public static final String FILE_NAME = "lines.dat";
+
+    private static final int MAGIC = 0x4b4c4831; // KLH1
+
+    private final File file;
+    private final String[] paths;
+    /**
+     * Start of each file's runs, followed by the start of the index.
+     */
+    private final long[] offsets;
+    private Map<String, Integer> ids;
+
+    private LineHitsStore(File file, String[] paths, long[] offsets) {
+        this.file = file;
+        this.paths = paths;
+        this.offsets = offsets;
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    public String getPath(int id) {
+        return paths[id];
+    }
+
+    /**
+     * Gets the id of the file with the given path.
+     *
+     * @return -1 if the file is not in this store.
+     */
+    public synchronized int indexOf(String path) {
+        if (ids == null) {
+            ids = new HashMap<String, Integer>(paths.length * 2);
+            for (int i = 0; i < paths.length; i++) {
+                ids.put(paths[i], i);
+            }
+        }
+        Integer id = ids.get(path);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Decodes the line hits of one file.
+     *
+     * @return the line numbers and their hit counts.
+     */
+    public int[][] read(int id) throws IOException {
+        byte[] block = new byte[(int) (offsets[id + 1] - offsets[id])];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offsets[id]);
+            raf.readFully(block);
+        } finally {
+            raf.close();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        int runs = readVarint(in);
+        int[] lines = new int[16];
+        int[] hits = new int[16];
+        int n = 0;
+        int line = 0;
+        for (int r = 0; r < runs; r++) {
+            line += readVarint(in);
+            int length = readVarint(in);
+            int count = readVarint(in);
+            if (n + length > lines.length) {
+                int size = Math.max(n + length, lines.length * 2);
+                lines = Arrays.copyOf(lines, size);
+                hits = Arrays.copyOf(hits, size);
+            }
+            for (int i = 0; i < length; i++) {
+                lines[n] = line++;
+                hits[n++] = count;
+            }
+        }
+        return new int[][] { Arrays.copyOf(lines, n), Arrays.copyOf(hits, n) };
+    }
+
+    /**
+     * Reads the index of a store.
+     *
+     * @return null if there is no store.
+     */
+    public static LineHitsStore open(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a line hits store: " + file);
+            }
+            in.seek(in.length() - 8);
+            long index = in.readLong();
+            in.seek(index);
+            // the index can be large: read it through a buffer
+            DataInputStream indexIn = new DataInputStream(new BufferedInputStream(new RandomAccessFileInputStream(in)));
+            int count = indexIn.readInt();
+            String[] paths = new String[count];
+            long[] offsets = new long[count + 1];
+            for (int i = 0; i < count; i++) {
+                paths[i] = indexIn.readUTF();
+                offsets[i] = indexIn.readLong();
+            }
+            offsets[count] = index;
+            return new LineHitsStore(file, paths, offsets);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the line hits of the given files.
+     */
+    public static void write(File file, Collection<FileCoverage> files) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        DataOutputStream out = new DataOutputStream(counter);
+        try {
+            out.writeInt(MAGIC);
+            String[] paths = new String[files.size()];
+            long[] offsets = new long[files.size()];
+            int i = 0;
+            for (FileCoverage f : files) {
+                paths[i] = f.getPath();
+                offsets[i++] = counter.count;
+                writeRuns(out, f);
+            }
+            long index = counter.count;
+            out.writeInt(paths.length);
+            for (i = 0; i < paths.length; i++) {
+                out.writeUTF(paths[i]);
+                out.writeLong(offsets[i]);
+            }
+            out.writeLong(index);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeRuns(DataOutputStream out, FileCoverage f) throws IOException {
+        int n = f.getHitSize();
+        int runs = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || !continuesRun(f, i)) runs++;
+        }
+        writeVarint(out, runs);
+        int end = 0;
+        for (int i = 0; i < n; ) {
+            int start = i++;
+            while (i < n && continuesRun(f, i)) i++;
+            writeVarint(out, f.getHitLine(start) - end);
+            writeVarint(out, i - start);
+            writeVarint(out, f.getHitCount(start));
+            end = f.getHitLine(i - 1) + 1;
+        }
+    }
+
+    /**
+     * Whether the i-th hit line directly follows the previous one with the same hit count.
+     */
+    private static boolean continuesRun(FileCoverage f, int i) {
+        return f.getHitLine(i) == f.getHitLine(i - 1) + 1 && f.getHitCount(i) == f.getHitCount(i - 1);
+    }
+
+    static void writeVarint(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static final class RandomAccessFileInputStream extends InputStream {
+        private final RandomAccessFile in;
+
+        RandomAccessFileInputStream(RandomAccessFile in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package hudson.plugins.karma;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches paths against many Ant-style patterns at once.
+ *
+ * <p>
+ * All patterns are compiled into one trie over path segments: literal segments
+ * are looked up in a hash map, segments with <tt>*</tt> or <tt>?</tt> are shared
+ * between the patterns that spell them the same way, and <tt>**</tt> becomes a
+ * node that loops on any segment. A path is then classified against every
+ * pattern by walking its segments once, keeping the set of live trie nodes,
+ * instead of trying each pattern in turn.
+ *
+ * <p>
+ * Patterns are matched against the end of the path, as if they started with
+ * <tt>**&#47;</tt>, since lcov reports carry the absolute paths of the agent.
+ * So <tt>src/core/**</tt> matches <tt>/home/jenkins/workspace/job/src/core/a.js</tt>.
+ *
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+final class PathMatcher implements LcovParser.Filter {
+    private final Node root;
+    private final int size;
+    private int nodes;
+
+    PathMatcher(List<String> patterns) {
+        root = new Node(nodes++, true);
+        size = patterns.size();
+        for (int i = 0; i < patterns.size(); i++) {
+            add(patterns.get(i), i);
+        }
+    }
+
+    /**
+     * Builds a matcher from a list of patterns separated by commas or white space. Can be null or empty.
+     */
+    static PathMatcher parse(String patterns) {
+        List<String> l = new ArrayList<String>();
+        if (patterns != null) {
+            for (String p : patterns.split("[,\\s]+")) {
+                if (p.length() > 0) {
+                    l.add(p);
+                }
+            }
+        }
+        return new PathMatcher(l);
+    }
+
+    /**
+     * Number of patterns.
+     */
+    int size() {
+        return size;
+    }
+
+    private void add(String pattern, int id) {
+        pattern = pattern.replace('\\', '/');
+        if (pattern.endsWith("/")) {
+            // Ant: a trailing slash stands for everything below
+            pattern += "**";
+        }
+        Node n = root;
+        for (String segment : split(pattern)) {
+            if (segment.equals("**")) {
+                if (n.loop) {
+                    continue;
+                }
+                if (n.anyDepth == null) {
+                    n.anyDepth = new Node(nodes++, true);
+                }
+                n = n.anyDepth;
+            } else if (segment.indexOf('*') < 0 && segment.indexOf('?') < 0) {
+                Node c = n.literals.get(segment);
+                if (c == null) {
+                    n.literals.put(segment, c = new Node(nodes++, false));
+                }
+                n = c;
+            } else {
+                n = n.wildcard(segment, this);
+            }
+        }
+        n.accepts.set(id);
+    }
+
+    /**
+     * Returns the patterns matching the given path, as bits indexed like the patterns.
+     */
+    BitSet match(String path) {
+        BitSet result = new BitSet(size);
+        List<Node> current = run(path);
+        for (Node n : current) {
+            result.or(n.accepts);
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if any pattern matches the given path.
+     */
+    boolean matchesAny(String path) {
+        for (Node n : run(path)) {
+            if (!n.accepts.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Accepts the paths that no pattern matches, so that a matcher of excludes can filter lcov records.
+     */
+    public boolean accept(String path) {
+        return size == 0 || !matchesAny(path);
+    }
+
+    /**
+     * Walks the trie along the segments of the path, and returns the live nodes at the end.
+     */
+    private List<Node> run(String path) {
+        int[] mark = new int[nodes];
+        int generation = 1;
+        List<Node> current = new ArrayList<Node>();
+        List<Node> next = new ArrayList<Node>();
+        enter(current, root, mark, generation);
+
+        path = path.replace('\\', '/');
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                String segment = path.substring(start, end);
+                generation++;
+                next.clear();
+                for (Node n : current) {
+                    if (n.loop) {
+                        enter(next, n, mark, generation);
+                    }
+                    Node c = n.literals.get(segment);
+                    if (c != null) {
+                        enter(next, c, mark, generation);
+                    }
+                    for (int i = 0; i < n.wildcards.size(); i++) {
+                        if (matchSegment(n.wildcards.get(i), segment)) {
+                            enter(next, n.wildcardNodes.get(i), mark, generation);
+                        }
+                    }
+                }
+                List<Node> t = current;
+                current = next;
+                next = t;
+            }
+            start = end + 1;
+        }
+        return current;
+    }
+
+    /**
+     * Adds a node to the live set, together with the <tt>**</tt> nodes reachable without consuming a segment.
+     */
+    private static void enter(List<Node> live, Node n, int[] mark, int generation) {
+        while (n != null && mark[n.id] != generation) {
+            mark[n.id] = generation;
+            live.add(n);
+            n = n.anyDepth;
+        }
+    }
+
+    /**
+     * Matches a single segment against a segment pattern with <tt>*</tt> and <tt>?</tt>.
+     */
+    static boolean matchSegment(String pattern, String segment) {
+        int p = 0, s = 0, star = -1, mark = 0;
+        while (s < segment.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == segment.charAt(s))) {
+                p++;
+                s++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                mark = s;
+            } else if (star >= 0) {
+                p = star + 1;
+                s = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private static List<String> split(String pattern) {
+        List<String> segments = new ArrayList<String>();
+        for (String s : pattern.split("/")) {
+            if (s.length() > 0) {
+                segments.add(s);
+            }
+        }
+        return segments;
+    }
+
+    private static final class Node {
+        final int id;
+
+        /**
+         * Whether this node stays live on any segment, i.e. it stands for <tt>**</tt>.
+         */
+        final boolean loop;
+
+        final Map<String, Node> literals = new HashMap<String, Node>();
+        final List<String> wildcards = new ArrayList<String>();
+        final List<Node> wildcardNodes = new ArrayList<Node>();
+        Node anyDepth;
+
+        /**
+         * Patterns ending at this node.
+         */
+        final BitSet accepts = new BitSet();
+
+        Node(int id, boolean loop) {
+            this.id = id;
+            this.loop = loop;
+        }
+
+        Node wildcard(String segment, PathMatcher matcher) {
+            int i = wildcards.indexOf(segment);
+            if (i >= 0) {
+                return wildcardNodes.get(i);
+            }
+            Node n = new Node(matcher.nodes++, false);
+            wildcards.add(segment);
+            wildcardNodes.add(n);
+            return n;
+        }
+    }
+}
@@ -7,47 +7,100 @@ import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
 /**
- * Represents <tt>x/y</tt> where x={@link #numerator} and y={@link #denominator}.
- * 
+ * Represents <tt>x/y</tt> where x={@link #covered} and y={@link #total}.
+ *
+ * <p>
+ * The counts are kept as longs, since the float counts of earlier versions
+ * lost precision above 2<sup>24</sup>. Ratios recorded with floats are
+ * converted when read back.
+ *
  * @author Kohsuke Kawaguchi
  */
 @ExportedBean
 final public class Ratio implements Serializable {
-  
 
-    private float numerator = 0;
-    private float denominator = 0;
-    boolean initialized = false;
+    /**
+     * Total of a ratio that was never set.
+     */
+    static final long UNSET = Long.MIN_VALUE;
+
+    private long covered = 0;
+    private long total = UNSET;
+
+    /**
+     * Counts recorded by earlier versions, only set while reading them back.
+     */
+    @Deprecated
+    private Float numerator, denominator;
+    @Deprecated
+    private Boolean initialized;
 
+    /**
+     * Creates a ratio that was never set.
+     */
+    public Ratio() {
+    }
+
+    public Ratio(long covered, long total) {
+        this.covered = covered;
+        this.total = total;
+    }
+
+    /**
+     * @deprecated counts above 2<sup>24</sup> are not exact, use {@link #Ratio(long, long)}.
+     */
+    @Deprecated
     public Ratio(float...f) {
     	if (f.length >=2 ) {
-    		initialized = true;
-            this.numerator = f[0];
-            this.denominator = f[1];
+            this.covered = Math.round((double) f[0]);
+            this.total = Math.round((double) f[1]);
     	}
     }
-    
+
+    private Object readResolve() {
+        if (initialized != null || numerator != null || denominator != null) {
+            if (initialized == null || initialized) {
+                covered = numerator == null ? 0 : Math.round((double) numerator);
+                total = denominator == null ? 0 : Math.round((double) denominator);
+            } else {
+                covered = 0;
+                total = UNSET;
+            }
+            numerator = denominator = null;
+            initialized = null;
+        }
+        return this;
+    }
+
+    public long getCovered() {
+        return covered;
+    }
+
+    public long getTotal() {
+        return isInitialized() ? total : 0;
+    }
+
+    /**
+     * @deprecated not exact above 2<sup>24</sup>, use {@link #getCovered()}.
+     */
+    @Deprecated
     public float getNumerator() {
-        return numerator;
+        return covered;
     }
 
+    /**
+     * @deprecated not exact above 2<sup>24</sup>, use {@link #getTotal()}.
+     */
+    @Deprecated
     public float getDenominator() {
-        return denominator;
+        return getTotal();
     }
 
     /**
      * Gets "x/y" representation.
      */
     public String toString() {
-        return print(numerator)+"/"+print(denominator);
-    }
-
-    private String print(float f) {
-        int i = (int) f;
-        if(i==f)
-            return String.valueOf(i);
-        else
-            return String.valueOf(f);
+        return covered+"/"+getTotal();
     }
 
     /**
@@ -63,7 +116,14 @@ final public class Ratio implements Serializable {
      */
     @Exported
     public float getPercentageFloat() {
-        return denominator<=0? 0: 100*numerator/denominator;
+        return percentage(covered, total);
+    }
+
+    /**
+     * Computes the percentage of covered in total, 0 if there is nothing to cover.
+     */
+    static float percentage(long covered, long total) {
+        return total<=0? 0: (float) (100.0*covered/total);
     }
 
     public boolean equals(Object o) {
@@ -72,57 +132,79 @@ final public class Ratio implements Serializable {
 
         Ratio ratio = (Ratio) o;
 
-        return Float.compare(ratio.denominator, denominator)==0
-            && Float.compare(ratio.numerator, numerator)==0;
-
+        return ratio.covered == covered && ratio.getTotal() == getTotal();
     }
 
     public int hashCode() {
-        int result;
-        result = numerator != +0.0f ? Float.floatToIntBits(numerator) : 0;
-        result = 31 * result + denominator != +0.0f ? Float.floatToIntBits(denominator) : 0;
-        return result;
+        long h = 31 * covered + getTotal();
+        return (int) (h ^ (h >>> 32));
     }
-    
+
     public void addValue(String v) {
-        float[] f = parse(v);
-        numerator += f[0];
-        denominator += f[1];
-		initialized = true;
+        long[] f = parse(v);
+        covered += f[0];
+        total = getTotal() + f[1];
     }
-    
+
     public boolean isInitialized() {
-    	return initialized;
+    	return total != UNSET;
+    }
+
+    /**
+     * Stores this ratio as covered and total at <tt>2*i</tt> and <tt>2*i+1</tt>.
+     */
+    void pack(long[] counts, int i) {
+        counts[2*i] = covered;
+        counts[2*i+1] = total;
+    }
+
+    /**
+     * Reads a ratio packed as covered and total at <tt>2*i</tt> and <tt>2*i+1</tt>.
+     *
+     * @return null if the ratio was never set.
+     */
+    static Ratio unpack(long[] counts, int i) {
+        if (counts[2*i+1] == UNSET) {
+            return null;
+        }
+        return new Ratio(counts[2*i], counts[2*i+1]);
     }
 
     /**
      * Parses the value attribute format "52% (52/100)".
      */
-    static float[] parse(String v) {
-        // if only I could use java.util.Scanner...
-        
+    static long[] parse(String v) {
         // only leave "a/b" in "N% (a/b)"
-        int idx = v.indexOf('(');
-        v = v.substring(idx+1,v.length()-1);
-        idx = v.indexOf('/');
-        
-        return new float[]{ parseFloat(v.substring(0,idx)), parseFloat(v.substring(idx+1)) };
+        int open = v.indexOf('(');
+        int slash = v.indexOf('/', open+1);
+        return new long[]{ parseCount(v, open+1, slash), parseCount(v, slash+1, v.length()-1) };
     }
 
     static Ratio parseValue(String v) throws IOException {
-        return new Ratio(parse(v));
+        long[] f = parse(v);
+        return new Ratio(f[0], f[1]);
     }
 
      /**
-      * Parses the float value stored in a string. Uses simple heuristics to
-      * handle comma or dot as a decimal point.
+      * Parses a count, rounding a decimal comma or dot fraction to the nearest
+      * whole count, without creating intermediate strings. Earlier versions
+      * kept the fraction in their float counts.
       */
-     private static float parseFloat(String v) {
-         int idx = v.indexOf(',');
-         if (idx >= 0) {
-             v = v.substring(0, idx) + "." + v.substring(idx+1);
+     static long parseCount(String v, int start, int end) {
+         long n = 0;
+         int i = start;
+         while (i < end && v.charAt(i) == ' ') i++;
+         while (end > i && v.charAt(end-1) == ' ') end--;
+         for (; i < end; i++) {
+             char c = v.charAt(i);
+             if (c == '.' || c == ',') {
+                 if (i+1 < end && v.charAt(i+1) >= '5' && v.charAt(i+1) <= '9') n++;
+                 break;
+             }
+             if (c < '0' || c > '9') throw new NumberFormatException(v.substring(start, end));
+             n = n*10 + (c - '0');
          }
-         return Float.parseFloat(v);
+         return n;
      }
 
     private static final long serialVersionUID = 1L;
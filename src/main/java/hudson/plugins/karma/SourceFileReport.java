@@ -0,0 +1,88 @@
+package hudson.plugins.karma;
+
+import hudson.model.AbstractBuild;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Line coverage of one source file, decoded from the build's {@link LineHitsStore}
+ * when the file is viewed.
+ */
+public final class SourceFileReport {
+    private final KarmaCoverageReport report;
+    private final String name;
+    private final int[] lines;
+    private final int[] hits;
+
+    SourceFileReport(KarmaCoverageReport report, String name, int[] lines, int[] hits) {
+        this.report = report;
+        this.name = name;
+        this.lines = lines;
+        this.hits = hits;
+    }
+
+    public AbstractBuild<?,?> getBuild() {
+        return report.getBuild();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDisplayName() {
+        return name;
+    }
+
+    public int getLineCount() {
+        return lines.length;
+    }
+
+    public int getCoveredLineCount() {
+        int n = 0;
+        for (int h : hits) {
+            if (h > 0) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Gets the instrumented lines in order.
+     */
+    public List<Line> getLines() {
+        return new AbstractList<Line>() {
+            public Line get(int i) {
+                return new Line(lines[i], hits[i]);
+            }
+
+            public int size() {
+                return lines.length;
+            }
+        };
+    }
+
+    /**
+     * An instrumented line and the number of times it was hit.
+     */
+    public static final class Line {
+        private final int number;
+        private final int hits;
+
+        Line(int number, int hits) {
+            this.number = number;
+            this.hits = hits;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public int getHits() {
+            return hits;
+        }
+
+        public boolean isCovered() {
+            return hits > 0;
+        }
+    }
+}
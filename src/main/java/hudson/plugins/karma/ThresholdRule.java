@@ -0,0 +1,264 @@
+package hudson.plugins.karma;
+
+import hudson.model.TaskListener;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link Rule} made of user-defined minimum coverage thresholds, for the whole
+ * report, for the files matching a pattern, or for each of those files.
+ *
+ * <p>
+ * The thresholds are compiled into a flat plan of parallel arrays, with all
+ * distinct patterns in one {@link PathMatcher} so that each file is classified
+ * once, and the plan is run over the columns of the build's
+ * {@link FileCoverageTable} in a single pass.
+ */
+public class ThresholdRule extends Rule {
+    private final List<Threshold> thresholds;
+
+    private transient Plan plan;
+
+    public ThresholdRule(List<Threshold> thresholds) {
+        this.thresholds = new ArrayList<Threshold>(thresholds);
+    }
+
+    public List<Threshold> getThresholds() {
+        return Collections.unmodifiableList(thresholds);
+    }
+
+    @Override
+    public void enforce(KarmaCoverageReport report, TaskListener listener) {
+        PrintStream logger = listener.getLogger();
+        Plan p = getPlan();
+        List<String> violations = new ArrayList<String>();
+
+        // thresholds on the whole report use the report totals, which include statements
+        Ratio[] totals = { report.getLineCoverage(), report.getStatementCoverage(), report.getFunctionCoverage(), report.getBranchCoverage() };
+        for (int i : p.global) {
+            Threshold t = thresholds.get(i);
+            Ratio r = totals[t.metric.ratio];
+            if (r != null && r.isInitialized() && r.getPercentageFloat() < t.minimum) {
+                violations.add(describe(t, "all files", r.getPercentageFloat()));
+            }
+        }
+
+        if (p.patterns.size() > 0) {
+            FileCoverageTable files;
+            try {
+                files = report.getFileTable();
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Karma: failed to read per-file coverage"));
+                files = null;
+            }
+            if (files == null) {
+                logger.println("Karma: no per-file coverage in this build, only the thresholds on all files were checked");
+            } else {
+                p.run(files, thresholds, violations);
+            }
+        }
+
+        if (!violations.isEmpty()) {
+            report.setFailed();
+            for (int i = 0; i < violations.size() && i < MAX_REPORTED; i++) {
+                logger.println("Karma: " + violations.get(i));
+            }
+            if (violations.size() > MAX_REPORTED) {
+                logger.println("Karma: ... and " + (violations.size() - MAX_REPORTED) + " more coverage threshold violations");
+            }
+        }
+    }
+
+    private synchronized Plan getPlan() {
+        if (plan == null) {
+            plan = new Plan(thresholds);
+        }
+        return plan;
+    }
+
+    static String describe(Threshold t, String where, float percentage) {
+        return t.metric.name().toLowerCase() + " coverage of " + where + " is " + KarmaCoverageObject.percentFormat.format(percentage)
+                + "%, below the minimum of " + t.minimum + "%";
+    }
+
+    /**
+     * The thresholds, compiled into arrays indexed by threshold and by distinct pattern.
+     */
+    private static final class Plan {
+        /**
+         * Thresholds on the whole report.
+         */
+        final int[] global;
+
+        /**
+         * Distinct patterns, and the thresholds using each of them.
+         */
+        final PathMatcher patterns;
+        final int[][] byPattern;
+
+        final int[] column;
+        final boolean[] perFile;
+
+        Plan(List<Threshold> thresholds) {
+            int n = thresholds.size();
+            column = new int[n];
+            perFile = new boolean[n];
+            List<Integer> global = new ArrayList<Integer>();
+            Map<String, List<Integer>> patterns = new HashMap<String, List<Integer>>();
+            List<String> order = new ArrayList<String>();
+            for (int i = 0; i < n; i++) {
+                Threshold t = thresholds.get(i);
+                column[i] = t.metric.column;
+                perFile[i] = t.perFile;
+                if (t.pattern == null || t.pattern.trim().length() == 0) {
+                    if (t.perFile) {
+                        addTo(patterns, order, "**", i);
+                    } else {
+                        global.add(i);
+                    }
+                } else {
+                    addTo(patterns, order, t.pattern.trim(), i);
+                }
+            }
+            this.global = toArray(global);
+            this.patterns = new PathMatcher(order);
+            this.byPattern = new int[order.size()][];
+            for (int p = 0; p < order.size(); p++) {
+                this.byPattern[p] = toArray(patterns.get(order.get(p)));
+            }
+        }
+
+        /**
+         * Runs the plan over all files in one pass.
+         */
+        void run(FileCoverageTable files, List<Threshold> thresholds, List<String> violations) {
+            int n = column.length;
+            long[] covered = new long[n];
+            long[] total = new long[n];
+            boolean[] matched = new boolean[n];
+            for (int row = 0; row < files.size(); row++) {
+                BitSet matches = patterns.match(files.getPath(row));
+                for (int p = matches.nextSetBit(0); p >= 0; p = matches.nextSetBit(p + 1)) {
+                    for (int i : byPattern[p]) {
+                        int c = files.getCovered(column[i], row);
+                        int t = files.getTotal(column[i], row);
+                        if (perFile[i]) {
+                            if (t > 0 && 100f * c / t < thresholds.get(i).minimum) {
+                                violations.add(describe(thresholds.get(i), files.getPath(row), 100f * c / t));
+                            }
+                        } else {
+                            covered[i] += c;
+                            total[i] += t;
+                            matched[i] = true;
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (matched[i] && total[i] > 0 && 100f * covered[i] / total[i] < thresholds.get(i).minimum) {
+                    Threshold t = thresholds.get(i);
+                    violations.add(describe(t, t.pattern, 100f * covered[i] / total[i]));
+                }
+            }
+        }
+
+        private static void addTo(Map<String, List<Integer>> patterns, List<String> order, String pattern, int i) {
+            List<Integer> l = patterns.get(pattern);
+            if (l == null) {
+                patterns.put(pattern, l = new ArrayList<Integer>());
+                order.add(pattern);
+            }
+            l.add(i);
+        }
+
+        private static int[] toArray(List<Integer> l) {
+            int[] a = new int[l.size()];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = l.get(i);
+            }
+            return a;
+        }
+    }
+
+    /**
+     * Coverage metrics a threshold can apply to.
+     */
+    public enum Metric {
+        STATEMENT(0, FileCoverageTable.LINES),
+        BRANCH(1, FileCoverageTable.BRANCHES),
+        FUNCTION(2, FileCoverageTable.FUNCTIONS),
+        LINE(3, FileCoverageTable.LINES);
+
+        /**
+         * Index of the metric among the report ratios, and column in the per-file table.
+         * lcov has no statements, so per-file statement thresholds use the lines.
+         */
+        final int ratio;
+        final int column;
+
+        Metric(int ratio, int column) {
+            this.ratio = ratio;
+            this.column = column;
+        }
+    }
+
+    /**
+     * A minimum coverage.
+     */
+    public static final class Threshold implements Serializable {
+        /**
+         * Ant-style pattern of the files this threshold applies to, empty for all files.
+         */
+        private final String pattern;
+        private final Metric metric;
+        private final float minimum;
+
+        /**
+         * Whether each matching file must reach the minimum, rather than all of them together.
+         */
+        private final boolean perFile;
+
+        @DataBoundConstructor
+        public Threshold(String pattern, String metric, float minimum, boolean perFile) {
+            this.pattern = pattern;
+            this.metric = Metric.valueOf(metric);
+            this.minimum = minimum;
+            this.perFile = perFile;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public String getMetric() {
+            return metric.name();
+        }
+
+        public float getMinimum() {
+            return minimum;
+        }
+
+        public boolean isPerFile() {
+            return perFile;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Maximum number of violations printed to the build log.
+     */
+    private static final int MAX_REPORTED = 50;
+
+    private static final long serialVersionUID = 1L;
+}
@@ -29,18 +29,25 @@
  */
 package hudson.plugins.karma.portlet;
 
+import hudson.model.AbstractBuild;
 import hudson.model.Job;
 import hudson.model.Run;
+import hudson.plugins.karma.CoverageDigest;
 import hudson.plugins.karma.KarmaBuildAction;
+import hudson.plugins.karma.KarmaDays;
+import hudson.plugins.karma.KarmaMetrics;
 import hudson.plugins.karma.portlet.bean.KarmaCoverageResultSummary;
 import hudson.plugins.karma.portlet.utils.Utils;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.joda.time.LocalDate;
 
@@ -66,8 +73,17 @@ public final class KarmaLoadData {
    * @return Map The sorted summaries
    */
   public static Map<LocalDate, KarmaCoverageResultSummary> loadChartDataWithinRange(List<Job> jobs, int daysNumber) {
+    long start = KarmaMetrics.PORTLET_CHART.start();
+    try {
+      return loadChartData(jobs, daysNumber);
+    } finally {
+      KarmaMetrics.PORTLET_CHART.stop(start);
+    }
+  }
 
-    Map<LocalDate, KarmaCoverageResultSummary> summaries = new HashMap<LocalDate, KarmaCoverageResultSummary>();
+  private static Map<LocalDate, KarmaCoverageResultSummary> loadChartData(List<Job> jobs, int daysNumber) {
+
+    Map<LocalDate, KarmaCoverageResultSummary> summaries = new TreeMap<LocalDate, KarmaCoverageResultSummary>();
 
     // Get the last build (last date) of the all jobs
     LocalDate lastDate = Utils.getLastDate(jobs);
@@ -80,36 +96,156 @@ public final class KarmaLoadData {
     // Get the first date from last build date minus number of days
     LocalDate firstDate = lastDate.minusDays(daysNumber);
 
-    // For each job, get Karma coverage results according with
-    // date range (last build date minus number of days)
+    // Jobs that publish coverage have it by day already; merge their
+    // slices of days. Other jobs are walked build by build.
+    PriorityQueue<DayCursor> cursors = new PriorityQueue<DayCursor>();
     for (Job job : jobs) {
+      KarmaDays days = KarmaDays.of(job);
+      if (days != null) {
+        try {
+          DayCursor c = new DayCursor(job, days.slice(KarmaDays.dayOf(firstDate.plusDays(1)), KarmaDays.dayOf(lastDate)));
+          if (c.slice.size() > 0) {
+            cursors.add(c);
+          }
+          continue;
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Failed to read the daily coverage of " + job + ", walking its builds", e);
+        }
+      }
+      walk(summaries, job, firstDate);
+    }
+    merge(summaries, cursors);
 
-      Run run = job.getLastBuild();
+    return summaries;
 
-      if (null != run) {
-        LocalDate runDate = new LocalDate(run.getTimestamp());
+  }
 
-        while (runDate.isAfter(firstDate)) {
+  /**
+   * Get the distribution of the coverage of all jobs for each day, as
+   * the given quantiles, merged from the digests of each job and day.
+   * Each job weighs the same on each day it recorded coverage.
+   *
+   * @param jobs
+   *          jobs of Dashboard view
+   * @param daysNumber
+   *          number of days
+   * @param metric
+   *          index of the metric, as in {@link hudson.plugins.karma.portlet.utils.Constants#METRICS}
+   * @param quantiles
+   *          the quantiles, between 0 and 1
+   * @return Map The percentages at each quantile by date, sorted, or null if there is no build
+   */
+  public static Map<LocalDate, float[]> loadDistributionWithinRange(List<Job> jobs, int daysNumber, int metric,
+    double... quantiles) {
+    long start = KarmaMetrics.PORTLET_DISTRIBUTION.start();
+    try {
+      LocalDate lastDate = Utils.getLastDate(jobs);
+      if (lastDate == null) {
+        return null;
+      }
+      int from = KarmaDays.dayOf(lastDate.minusDays(daysNumber).plusDays(1));
+      int to = KarmaDays.dayOf(lastDate);
+
+      Map<Integer, CoverageDigest> digests = new TreeMap<Integer, CoverageDigest>();
+      for (Job job : jobs) {
+        KarmaDays days = KarmaDays.of(job);
+        if (days != null) {
+          try {
+            days.mergeDigests(from, to, metric, digests);
+          } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the daily coverage of " + job, e);
+          }
+        }
+      }
 
-          summarize(summaries, run, runDate, job);
+      Map<LocalDate, float[]> distribution = new TreeMap<LocalDate, float[]>();
+      for (Map.Entry<Integer, CoverageDigest> e : digests.entrySet()) {
+        float[] values = new float[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++) {
+          values[i] = e.getValue().quantile(quantiles[i]);
+        }
+        distribution.put(KarmaDays.toDate(e.getKey()), values);
+      }
+      return distribution;
+    } finally {
+      KarmaMetrics.PORTLET_DISTRIBUTION.stop(start);
+    }
+  }
 
-          run = run.getPreviousBuild();
+  /**
+   * Position in the days of one job, ordered by day.
+   */
+  private static final class DayCursor implements Comparable<DayCursor> {
+    final Job job;
+    final KarmaDays.Slice slice;
+    int i;
+
+    DayCursor(Job job, KarmaDays.Slice slice) {
+      this.job = job;
+      this.slice = slice;
+    }
 
-          if (null == run) {
-            break;
-          }
+    int day() {
+      return slice.getDay(i);
+    }
 
-          runDate = new LocalDate(run.getTimestamp());
+    public int compareTo(DayCursor o) {
+      return day() < o.day() ? -1 : day() == o.day() ? 0 : 1;
+    }
+  }
 
+  /**
+   * Merges the days of several jobs in day order, adding the last result of
+   * each job on each day to the summary of that day.
+   */
+  private static void merge(Map<LocalDate, KarmaCoverageResultSummary> summaries, PriorityQueue<DayCursor> cursors) {
+    int day = 0;
+    KarmaCoverageResultSummary summary = null;
+    while (!cursors.isEmpty()) {
+      DayCursor c = cursors.poll();
+      if (summary == null || c.day() != day) {
+        day = c.day();
+        LocalDate date = KarmaDays.toDate(day);
+        summary = summaries.get(date);
+        if (summary == null) {
+          summary = new KarmaCoverageResultSummary();
+          summaries.put(date, summary);
         }
       }
+      KarmaDays.Slice s = c.slice;
+      summary.addCoverageResult(new KarmaCoverageResultSummary(c.job, s.getLinePercentage(c.i),
+        s.getStatementPercentage(c.i), s.getFunctionPercentage(c.i), s.getBranchPercentage(c.i)));
+      summary.setJob(c.job);
+      if (++c.i < s.size()) {
+        cursors.add(c);
+      }
     }
+  }
+
+  /**
+   * Summarize the builds of a job from the last one back to the given date, excluded.
+   */
+  private static void walk(Map<LocalDate, KarmaCoverageResultSummary> summaries, Job job, LocalDate firstDate) {
+
+    Run run = job.getLastBuild();
+
+    if (null != run) {
+      LocalDate runDate = new LocalDate(run.getTimestamp());
+
+      while (runDate.isAfter(firstDate)) {
 
-    // Sorting by date, ascending order
-    Map<LocalDate, KarmaCoverageResultSummary> sortedSummaries = new TreeMap(summaries);
+        summarize(summaries, run, runDate, job);
+
+        run = run.getPreviousBuild();
+
+        if (null == run) {
+          break;
+        }
 
-    return sortedSummaries;
+        runDate = new LocalDate(run.getTimestamp());
 
+      }
+    }
   }
 
   /**
@@ -166,6 +302,20 @@ public final class KarmaLoadData {
     summaries.put(runDate, karmaCoverageResultSummary);
   }
 
+  /**
+   * Get the Karma action of a run, read from its karma folder on first use.
+   *
+   * @param run
+   *          a job execution
+   * @return the action, or null if the run has no coverage
+   */
+  private static KarmaBuildAction getAction(Run run) {
+    if (run instanceof AbstractBuild) {
+      return KarmaBuildAction.of((AbstractBuild<?, ?>) run);
+    }
+    return null;
+  }
+
   /**
    * Get the Karma coverage result for a specific run.
    *
@@ -174,7 +324,7 @@ public final class KarmaLoadData {
    * @return KarmaCoverageTestResult the coverage result
    */
   private static KarmaCoverageResultSummary getResult(Run run) {
-    KarmaBuildAction karmaAction = run.getAction(KarmaBuildAction.class);
+    KarmaBuildAction karmaAction = getAction(run);
 
     float lineCoverage = 0.0f;
     float statementCoverage = 0.0f;
@@ -207,6 +357,15 @@ public final class KarmaLoadData {
    * @return KarmaCoverageResultSummary the result summary
    */
   public static KarmaCoverageResultSummary getResultSummary(final Collection<Job> jobs) {
+    long start = KarmaMetrics.PORTLET_GRID.start();
+    try {
+      return summarizeLastResults(jobs);
+    } finally {
+      KarmaMetrics.PORTLET_GRID.stop(start);
+    }
+  }
+
+  private static KarmaCoverageResultSummary summarizeLastResults(final Collection<Job> jobs) {
     KarmaCoverageResultSummary summary = new KarmaCoverageResultSummary();
 
     for (Job job : jobs) {
@@ -220,7 +379,7 @@ public final class KarmaLoadData {
 
       if (run != null) {
 
-        KarmaBuildAction karmaAction = job.getLastSuccessfulBuild().getAction(KarmaBuildAction.class);
+        KarmaBuildAction karmaAction = getAction(run);
 
         if (null != karmaAction) {
           if (null != karmaAction.getLineCoverage()) {
@@ -256,4 +415,6 @@ public final class KarmaLoadData {
     }
     return summary;
   }
+
+  private static final Logger LOGGER = Logger.getLogger(KarmaLoadData.class.getName());
 }
@@ -0,0 +1,241 @@
+package hudson.plugins.karma.portlet.chart;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.plugins.karma.portlet.KarmaLoadData;
+import hudson.plugins.karma.portlet.Messages;
+import hudson.plugins.karma.portlet.utils.Constants;
+import hudson.plugins.karma.portlet.utils.Utils;
+import hudson.plugins.view.dashboard.DashboardPortlet;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ListBoxModel;
+import hudson.util.ShiftedCategoryAxis;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.util.List;
+import java.util.Map;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.renderer.category.CategoryItemRenderer;
+import org.jfree.data.category.CategoryDataset;
+import org.joda.time.LocalDate;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A portlet for Karma coverage results - the 10th percentile, median and
+ * 90th percentile of the coverage of the dashboard jobs over time.
+ */
+public class KarmaBuilderDistributionChart extends DashboardPortlet {
+
+  /**
+   * Quantiles shown, and the name of their series.
+   */
+  private static final double[] QUANTILES = { 0.1, 0.5, 0.9 };
+  private static final String[] SERIES = { "p10", "median", "p90" };
+
+  /**
+   * Chart width that can be set by user.
+   */
+  private final int width;
+
+  /**
+   * Chart height that can be set by user.
+   */
+  private final int height;
+
+  /**
+   * Number of days of the chart that can be set by user.
+   */
+  private final int daysNumber;
+
+  /**
+   * Index of the metric, as in {@link Constants#METRICS}.
+   */
+  private final int metric;
+
+  /**
+   * Constructor with chart attributes as parameters.
+   *
+   * @param name
+   *          chart name
+   * @param width
+   *          the chart width
+   * @param height
+   *          the chart height
+   * @param daysNumber
+   *          the number of days
+   * @param metric
+   *          the metric, line by default
+   */
+  @DataBoundConstructor
+  public KarmaBuilderDistributionChart(String name, String width, String height, String daysNumber, String metric) {
+
+    super(name);
+
+    this.width = Utils.validateChartAttributes(width, Constants.DEFAULT_WIDTH);
+    this.height = Utils.validateChartAttributes(height, Constants.DEFAULT_HEIGHT);
+    this.daysNumber = Utils.validateChartAttributes(daysNumber, Constants.DEFAULT_DAYS_NUMBER);
+    this.metric = Utils.metricIndex(metric);
+  }
+
+  /**
+   * This method will be called by portlet.jelly to load data and
+   * create the chart.
+   *
+   * @return Graph a distribution graph
+   */
+  public Graph getSummaryGraph() {
+
+    List<Job> jobs = getDashboard().getJobs();
+
+    Map<LocalDate, float[]> distribution = KarmaLoadData.loadDistributionWithinRange(jobs, daysNumber, metric, QUANTILES);
+
+    return createDistributionChart(distribution, width, height);
+  }
+
+  /**
+   * Creates a graph of the quantiles of each day.
+   *
+   * @param distribution
+   *          the percentages at each quantile by date
+   * @param widthParam
+   *          the chart width
+   * @param heightParam
+   *          the chart height
+   * @return Graph (JFreeChart)
+   */
+  private static Graph createDistributionChart(final Map<LocalDate, float[]> distribution, int widthParam,
+    int heightParam) {
+
+    return new Graph(-1, widthParam, heightParam) {
+
+      @Override
+      protected JFreeChart createGraph() {
+
+        // Show empty chart
+        if (distribution == null) {
+          return ChartFactory.createStackedAreaChart(null, Constants.AXIS_LABEL,
+            Constants.AXIS_LABEL_VALUE, null, PlotOrientation.VERTICAL, true, false, false);
+        }
+
+        JFreeChart chart = ChartFactory.createLineChart("", Constants.AXIS_LABEL, Constants.AXIS_LABEL_VALUE,
+          buildDataSet(distribution), PlotOrientation.VERTICAL, true, false, false);
+
+        chart.setBackgroundPaint(Color.white);
+
+        CategoryPlot plot = chart.getCategoryPlot();
+
+        CategoryItemRenderer renderer = plot.getRenderer();
+        BasicStroke stroke = new BasicStroke(Constants.LINE_THICKNESS, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        for (int i = 0; i < SERIES.length; i++) {
+          renderer.setSeriesStroke(i, stroke);
+        }
+
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setForegroundAlpha(Constants.FOREGROUND_ALPHA);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(Color.black);
+
+        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        plot.setDomainAxis(domainAxis);
+        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(Constants.DEFAULT_MARGIN);
+        domainAxis.setUpperMargin(Constants.DEFAULT_MARGIN);
+        domainAxis.setCategoryMargin(Constants.DEFAULT_MARGIN);
+
+        NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
+        rangeAxis.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
+        rangeAxis.setUpperBound(Constants.UPPER_BOUND);
+        rangeAxis.setLowerBound(Constants.LOWER_BOUND);
+
+        return chart;
+      }
+    };
+  }
+
+  /**
+   * Build data set, one series per quantile.
+   *
+   * @param distribution
+   *          the percentages at each quantile by date
+   * @return CategoryDataset the data set
+   */
+  /*package*/ static CategoryDataset buildDataSet(Map<LocalDate, float[]> distribution) {
+
+    DataSetBuilder<String, LocalDate> dataSetBuilder = new DataSetBuilder<String, LocalDate>();
+
+    for (Map.Entry<LocalDate, float[]> entry : distribution.entrySet()) {
+      for (int i = 0; i < SERIES.length; i++) {
+        dataSetBuilder.add(entry.getValue()[i], SERIES[i], entry.getKey());
+      }
+    }
+
+    return dataSetBuilder.build();
+  }
+
+  /**
+   * Descriptor that will be shown on Dashboard Portlets view.
+   */
+  @Extension
+  public static class DescriptorImpl extends Descriptor<DashboardPortlet> {
+
+    @Override
+    public String getDisplayName() {
+      return Messages.DistributionTitle();
+    }
+
+    public ListBoxModel doFillMetricItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (String m : Constants.METRICS) {
+        items.add(m);
+      }
+      return items;
+    }
+  }
+
+  /**
+   * Getter of the width.
+   *
+   * @return int the width
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Getter of the height.
+   *
+   * @return int the height
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Getter of the number of days.
+   *
+   * @return int the number of days
+   */
+  public int getDaysNumber() {
+    return daysNumber;
+  }
+
+  /**
+   * Getter of the metric.
+   *
+   * @return String the metric
+   */
+  public String getMetric() {
+    return Constants.METRICS[metric];
+  }
+}
@@ -201,7 +201,7 @@ public class KarmaBuilderTrendChart extends DashboardPortlet {
    * @return CategoryDataset Interface for a dataset with one or more
    *         series, and values associated with categories.
    */
-  private static CategoryDataset buildDataSet(Map<LocalDate, KarmaCoverageResultSummary> summaries) {
+  /*package*/ static CategoryDataset buildDataSet(Map<LocalDate, KarmaCoverageResultSummary> summaries) {
 
     DataSetBuilder<String, LocalDate> dataSetBuilder = new DataSetBuilder<String, LocalDate>();
 
@@ -0,0 +1,133 @@
+package hudson.plugins.karma.portlet.leaderboard;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.plugins.karma.KarmaLeaderboard;
+import hudson.plugins.karma.portlet.Messages;
+import hudson.plugins.karma.portlet.utils.Constants;
+import hudson.plugins.karma.portlet.utils.Utils;
+import hudson.plugins.view.dashboard.DashboardPortlet;
+import hudson.util.ListBoxModel;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A portlet for Karma coverage results - the lowest covered jobs of the
+ * dashboard and those that lost the most coverage over the last days.
+ *
+ * @see KarmaLeaderboard
+ */
+public class KarmaBuilderLeaderboard extends DashboardPortlet {
+
+  /**
+   * Number of jobs of each ranking that can be set by user.
+   */
+  private final int size;
+
+  /**
+   * Index of the ranked metric, as in {@link Constants#METRICS}.
+   */
+  private final int metric;
+
+  /**
+   * Constructor with the leaderboard attributes as parameters.
+   *
+   * @param name
+   *          leaderboard name
+   * @param size
+   *          the number of jobs of each ranking
+   * @param metric
+   *          the ranked metric, line by default
+   */
+  @DataBoundConstructor
+  public KarmaBuilderLeaderboard(String name, String size, String metric) {
+    super(name);
+    this.size = Utils.validateChartAttributes(size, Constants.DEFAULT_LEADERBOARD_SIZE);
+    this.metric = Utils.metricIndex(metric);
+  }
+
+  /**
+   * This method will be called by portlet.jelly to list the lowest
+   * covered jobs.
+   *
+   * @param jobs
+   *          the jobs of the dashboard
+   * @return the ranked jobs, lowest first
+   */
+  public List<KarmaLeaderboard.Entry> getLowest(Collection<Job> jobs) {
+    return KarmaLeaderboard.get().getLowest(metric, size, jobs);
+  }
+
+  /**
+   * This method will be called by portlet.jelly to list the jobs that
+   * lost the most coverage.
+   *
+   * @param jobs
+   *          the jobs of the dashboard
+   * @return the ranked jobs, biggest drop first
+   */
+  public List<KarmaLeaderboard.Entry> getRegressions(Collection<Job> jobs) {
+    return KarmaLeaderboard.get().getRegressions(metric, size, jobs);
+  }
+
+  /**
+   * Whether the rankings are complete. They are collected in the background
+   * the first time they are asked for.
+   *
+   * @return boolean whether the rankings are ready
+   */
+  public boolean isReady() {
+    return KarmaLeaderboard.get().isReady();
+  }
+
+  /**
+   * Getter of the number of days over which regressions are measured.
+   *
+   * @return int the number of days
+   */
+  public int getDays() {
+    return KarmaLeaderboard.DAYS;
+  }
+
+  /**
+   * Getter of the number of jobs of each ranking.
+   *
+   * @return int the number of jobs
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Getter of the ranked metric.
+   *
+   * @return String the metric
+   */
+  public String getMetric() {
+    return Constants.METRICS[metric];
+  }
+
+  /**
+   * Descriptor that will be shown on Dashboard Portlets view.
+   */
+  @Extension
+  public static class DescriptorImpl extends Descriptor<DashboardPortlet> {
+
+    @Override
+    public String getDisplayName() {
+      return Messages.LeaderboardTitle();
+    }
+
+    public ListBoxModel doFillMetricItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (String m : Constants.METRICS) {
+        items.add(m);
+      }
+      return items;
+    }
+  }
+}
@@ -54,6 +54,16 @@ public final class Constants {
    */
   public static final int DEFAULT_DAYS_NUMBER = 30;
 
+  /**
+   * Names of the coverage metrics, in the order used by the plugin.
+   */
+  public static final String[] METRICS = { "line", "statement", "function", "branch" };
+
+  /**
+   * Default number of jobs of each ranking of the leaderboard.
+   */
+  public static final int DEFAULT_LEADERBOARD_SIZE = 20;
+
   /**
    * Number of milliseconds in a day.
    */
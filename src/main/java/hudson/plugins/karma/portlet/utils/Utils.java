@@ -84,6 +84,22 @@ public final class Utils {
     }
   }
 
+  /**
+   * Get the index of a coverage metric.
+   *
+   * @param metric
+   *          the metric name, one of {@link Constants#METRICS}
+   * @return int the index of the metric, 0 (line) if unknown
+   */
+  public static int metricIndex(String metric) {
+    for (int i = 0; i < Constants.METRICS.length; i++) {
+      if (Constants.METRICS[i].equals(metric)) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
   /**
    * For the given list of jobs, this will search all jobs and return
    * the last run date of all.
@@ -0,0 +1,139 @@
+package hudson.plugins.karma;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the quantiles of {@link CoverageDigest} with the exact ones of known percentages.
+ */
+public class CoverageDigestTest {
+
+    private static final double[] QUANTILES = {0.1, 0.5, 0.9};
+
+    /**
+     * Percentage points a quantile may be off by.
+     */
+    private static final float TOLERANCE = 1f;
+
+    /**
+     * Many percentages bunched at the top, as coverage usually is.
+     */
+    private static float[] percentages(int n, long seed) {
+        Random random = new Random(seed);
+        float[] v = new float[n];
+        for (int i = 0; i < n; i++) {
+            v[i] = (float) (100 * (1 - Math.pow(random.nextDouble(), 3)));
+        }
+        return v;
+    }
+
+    private static float exact(float[] values, double q) {
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(q * sorted.length))];
+    }
+
+    private static CoverageDigest digest(float[] values, int from, int to, float weight) {
+        CoverageDigest d = new CoverageDigest();
+        for (int i = from; i < to; i++) {
+            d.add(values[i], weight);
+        }
+        return d;
+    }
+
+    private static void assertQuantiles(float[] values, CoverageDigest d) {
+        for (double q : QUANTILES) {
+            assertEquals("p" + Math.round(q * 100), exact(values, q), d.quantile(q), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void empty() {
+        CoverageDigest d = new CoverageDigest();
+        assertTrue(d.isEmpty());
+        assertTrue(Float.isNaN(d.quantile(0.5)));
+    }
+
+    @Test
+    public void evenlySpread() {
+        float[] values = new float[1001];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i / 10f;
+        }
+        CoverageDigest d = digest(values, 0, values.length, 1);
+        assertEquals(values.length, d.getTotalWeight(), 0);
+        assertEquals(10f, d.quantile(0.1), TOLERANCE);
+        assertEquals(50f, d.quantile(0.5), TOLERANCE);
+        assertEquals(90f, d.quantile(0.9), TOLERANCE);
+    }
+
+    @Test
+    public void skewed() {
+        float[] values = percentages(5000, 1);
+        assertQuantiles(values, digest(values, 0, values.length, 1));
+    }
+
+    @Test
+    public void mergeWithScaledWeights() {
+        float[] values = percentages(4000, 2);
+        CoverageDigest whole = digest(values, 0, values.length, 1);
+
+        // the same percentages, kept in two digests with other weights
+        CoverageDigest merged = new CoverageDigest();
+        merged.merge(digest(values, 0, 1500, 4), 0.25f);
+        merged.merge(digest(values, 1500, values.length, 0.5f), 2);
+
+        assertEquals(whole.getTotalWeight(), merged.getTotalWeight(), 1e-3);
+        assertQuantiles(values, merged);
+        for (double q : QUANTILES) {
+            assertEquals(whole.quantile(q), merged.quantile(q), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        float[] values = percentages(3000, 3);
+        CoverageDigest d = digest(values, 0, values.length, 1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        d.write(out);
+        out.close();
+        CoverageDigest read = CoverageDigest.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(d.getTotalWeight(), read.getTotalWeight(), 1e-3);
+        for (double q : new double[] {0, 0.1, 0.5, 0.9, 1}) {
+            assertEquals(d.quantile(q), read.quantile(q), 0);
+        }
+
+        // and it keeps taking percentages
+        float[] more = percentages(1000, 4);
+        for (float v : more) {
+            read.add(v, 1);
+        }
+        float[] all = Arrays.copyOf(values, values.length + more.length);
+        System.arraycopy(more, 0, all, values.length, more.length);
+        assertQuantiles(all, read);
+    }
+
+    @Test
+    public void writeAndReadEmpty() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        new CoverageDigest().write(out);
+        out.close();
+        CoverageDigest read = CoverageDigest.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(read.isEmpty());
+        assertEquals(0, read.getTotalWeight(), 0);
+    }
+}
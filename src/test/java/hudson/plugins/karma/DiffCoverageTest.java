@@ -0,0 +1,139 @@
+package hudson.plugins.karma;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Parses canned <tt>git diff --unified=0</tt> output, and maps lcov paths to the changed files.
+ */
+public class DiffCoverageTest {
+
+    private static Map<String, int[]> parse(String... lines) throws IOException {
+        StringBuilder b = new StringBuilder();
+        for (String line : lines) {
+            b.append(line).append('\n');
+        }
+        return DiffCoverage.parseDiff(new ByteArrayInputStream(b.toString().getBytes("UTF-8")));
+    }
+
+    @Test
+    public void addedAndModifiedLines() throws Exception {
+        Map<String, int[]> changed = parse(
+                "diff --git a/src/app.js b/src/app.js",
+                "index 1111111..2222222 100644",
+                "--- a/src/app.js",
+                "+++ b/src/app.js",
+                "@@ -3 +3 @@ function a() {",
+                "-  return 1;",
+                "+  return 2;",
+                "@@ -10,0 +11,2 @@ function b() {",
+                "+  x();",
+                "+  y();");
+        assertEquals(1, changed.size());
+        assertArrayEquals(new int[] {3, 3, 11, 12}, changed.get("src/app.js"));
+    }
+
+    @Test
+    public void pureDeletionsChangeNoLine() throws Exception {
+        Map<String, int[]> changed = parse(
+                "--- a/src/app.js",
+                "+++ b/src/app.js",
+                "@@ -4,2 +3,0 @@",
+                "-  a();",
+                "-  b();");
+        assertNull(changed.get("src/app.js"));
+    }
+
+    @Test
+    public void headersInsideHunks() throws Exception {
+        // removed "-- a/x" and added "++ b/evil.js" read like file headers
+        Map<String, int[]> changed = parse(
+                "--- a/src/app.js",
+                "+++ b/src/app.js",
+                "@@ -7 +7,2 @@",
+                "--- a/x",
+                "+++ b/evil.js",
+                "+y();",
+                "@@ -20 +21 @@",
+                "-a",
+                "+b");
+        assertEquals(Collections.singleton("src/app.js"), changed.keySet());
+        assertArrayEquals(new int[] {7, 8, 21, 21}, changed.get("src/app.js"));
+    }
+
+    @Test
+    public void noNewlineMarker() throws Exception {
+        Map<String, int[]> changed = parse(
+                "--- a/src/app.js",
+                "+++ b/src/app.js",
+                "@@ -5 +5 @@",
+                "-old",
+                "\\ No newline at end of file",
+                "+new",
+                "\\ No newline at end of file",
+                "--- a/src/lib.js",
+                "+++ b/src/lib.js",
+                "@@ -1,0 +2 @@",
+                "+z");
+        assertArrayEquals(new int[] {5, 5}, changed.get("src/app.js"));
+        assertArrayEquals(new int[] {2, 2}, changed.get("src/lib.js"));
+    }
+
+    @Test
+    public void deletedFile() throws Exception {
+        Map<String, int[]> changed = parse(
+                "diff --git a/src/gone.js b/src/gone.js",
+                "deleted file mode 100644",
+                "--- a/src/gone.js",
+                "+++ /dev/null",
+                "@@ -1,2 +0,0 @@",
+                "-+++ b/src/other.js",
+                "-x",
+                "--- /dev/null",
+                "+++ b/src/new.js",
+                "@@ -0,0 +1,3 @@",
+                "+a",
+                "+b",
+                "+c");
+        assertEquals(Collections.singleton("src/new.js"), changed.keySet());
+        assertArrayEquals(new int[] {1, 3}, changed.get("src/new.js"));
+    }
+
+    @Test
+    public void quotedNames() throws Exception {
+        Map<String, int[]> changed = parse(
+                "--- \"a/src/\\303\\251t\\303\\251.js\"",
+                "+++ \"b/src/\\303\\251t\\303\\251.js\"",
+                "@@ -1 +1 @@",
+                "-a",
+                "+b",
+                "--- a/src/with space.js\t",
+                "+++ b/src/with space.js\t",
+                "@@ -2 +2 @@",
+                "-a",
+                "+b");
+        assertArrayEquals(new int[] {1, 1}, changed.get("src/\u00e9t\u00e9.js"));
+        assertArrayEquals(new int[] {2, 2}, changed.get("src/with space.js"));
+    }
+
+    @Test
+    public void findOnlyDropsTheWorkspace() {
+        Map<String, int[]> changed = Collections.singletonMap("web/lib/x.js", new int[] {1, 1});
+        String[] roots = {"/ws/", "/real/ws/"};
+        assertEquals("web/lib/x.js", DiffCoverage.find(changed, "web/", roots, "/ws/lib/x.js"));
+        assertEquals("web/lib/x.js", DiffCoverage.find(changed, "web/", roots, "/real/ws/lib/x.js"));
+        assertEquals("web/lib/x.js", DiffCoverage.find(changed, "web/", roots, "lib/x.js"));
+        assertEquals("web/lib/x.js", DiffCoverage.find(changed, "web/", roots, "./lib/x.js"));
+        assertNull(DiffCoverage.find(changed, "web/", roots, "/ws/vendor/lib/x.js"));
+        assertNull(DiffCoverage.find(changed, "web/", roots, "vendor/lib/x.js"));
+        assertNull(DiffCoverage.find(changed, "web/", roots, "/elsewhere/lib/x.js"));
+    }
+}
@@ -0,0 +1,185 @@
+package hudson.plugins.karma;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.plugins.karma.portlet.KarmaLoadData;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Loads the pages and portlets of the plugin over many jobs with long build
+ * histories, and fails when they get slower or bigger than the configured budgets.
+ * It only runs when asked for with <tt>-Dkarma.load=true</tt>, as it takes long
+ * and its budgets depend on the machine.
+ *
+ * <p>
+ * The history is written to disk directly rather than built, then Jenkins is
+ * reloaded so that builds are read back lazily as after a restart. Everything
+ * is configured with system properties, e.g.
+ * <tt>mvn test -Dtest=LargeHistoryLoadTest -Dkarma.load=true -Dkarma.load.jobs=300 -Dkarma.load.builds=2000</tt>:
+ * <dl>
+ * <dt>karma.load.jobs, karma.load.builds, karma.load.failureRatio</dt>
+ * <dd>size of the history, and share of failed builds without coverage</dd>
+ * <dt>karma.load.days</dt>
+ * <dd>days the history spans, and the range of the trend portlet</dd>
+ * <dt>karma.load.budget.jobPage, .graph, .trendPortlet, .gridPortlet</dt>
+ * <dd>budgets in milliseconds for the median of the measured runs</dd>
+ * <dt>karma.load.budget.heap</dt>
+ * <dd>budget in MB for the heap retained once all of the above were loaded</dd>
+ * </dl>
+ */
+public class LargeHistoryLoadTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private static final int JOBS = Integer.getInteger("karma.load.jobs", 20);
+    private static final int BUILDS = Integer.getInteger("karma.load.builds", 200);
+    private static final double FAILURE_RATIO = Double.parseDouble(System.getProperty("karma.load.failureRatio", "0.1"));
+    private static final int DAYS = Integer.getInteger("karma.load.days", 30);
+
+    private static final long JOB_PAGE_BUDGET = Long.getLong("karma.load.budget.jobPage", 5000);
+    private static final long GRAPH_BUDGET = Long.getLong("karma.load.budget.graph", 3000);
+    private static final long TREND_PORTLET_BUDGET = Long.getLong("karma.load.budget.trendPortlet", 2000);
+    private static final long GRID_PORTLET_BUDGET = Long.getLong("karma.load.budget.gridPortlet", 1000);
+    private static final long HEAP_BUDGET = Long.getLong("karma.load.budget.heap", 256);
+
+    /**
+     * Measured runs of each scenario, after one warm-up run.
+     */
+    private static final int RUNS = 5;
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    @BeforeClass
+    public static void enabled() {
+        assumeTrue(Boolean.getBoolean("karma.load"));
+    }
+
+    @Test
+    public void largeHistoryWithinBudgets() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < JOBS; i++) {
+            FreeStyleProject p = j.createFreeStyleProject("karma" + i);
+            p.getPublishersList().add(new KarmaPublisher());
+            writeHistory(p, random);
+        }
+
+        j.jenkins.reload();
+        final List<Job> jobs = new ArrayList<Job>();
+        for (int i = 0; i < JOBS; i++) {
+            jobs.add(j.jenkins.getItemByFullName("karma" + i, FreeStyleProject.class));
+        }
+        final FreeStyleProject first = (FreeStyleProject) jobs.get(0);
+        long heapBefore = usedHeap();
+
+        final JenkinsRule.WebClient wc = j.createWebClient();
+        wc.setJavaScriptEnabled(false);
+
+        List<String> failures = new ArrayList<String>();
+        measure(failures, "job page", JOB_PAGE_BUDGET, new Scenario() {
+            public void run() throws Exception {
+                wc.getPage(first);
+            }
+        });
+        measure(failures, "trend graph", GRAPH_BUDGET, new Scenario() {
+            public void run() throws Exception {
+                wc.goTo(first.getUrl() + "karma/graph", "image/png");
+            }
+        });
+        measure(failures, "trend portlet", TREND_PORTLET_BUDGET, new Scenario() {
+            public void run() throws Exception {
+                KarmaLoadData.loadChartDataWithinRange(jobs, DAYS);
+            }
+        });
+        measure(failures, "grid portlet", GRID_PORTLET_BUDGET, new Scenario() {
+            public void run() throws Exception {
+                KarmaLoadData.getResultSummary(jobs);
+            }
+        });
+
+        long heap = (usedHeap() - heapBefore) / (1024 * 1024);
+        LOGGER.info(JOBS + " jobs of " + BUILDS + " builds retain " + heap + " MB of heap");
+        if (heap > HEAP_BUDGET) {
+            failures.add("retained heap: " + heap + " MB, budget " + HEAP_BUDGET + " MB");
+        }
+
+        if (!failures.isEmpty()) {
+            fail("over budget with " + JOBS + " jobs of " + BUILDS + " builds: " + failures);
+        }
+    }
+
+    /**
+     * Writes the builds of a job, spread over {@link #DAYS} up to now.
+     */
+    private static void writeHistory(FreeStyleProject p, Random random) throws IOException {
+        long now = System.currentTimeMillis();
+        for (int n = 1; n <= BUILDS; n++) {
+            FreeStyleBuild b = new FreeStyleBuild(p);
+            if (random.nextDouble() < FAILURE_RATIO) {
+                b.setResult(Result.FAILURE);
+            } else {
+                b.setResult(Result.SUCCESS);
+                new KarmaBuildAction(b, null, ratio(random, 1000), ratio(random, 1200),
+                        ratio(random, 200), ratio(random, 500), new KarmaHealthReportThresholds()).save();
+            }
+            b.save();
+
+            // builds can only be created now; move them back in time on disk
+            long timestamp = now - (BUILDS - n) * DAYS * DAY / BUILDS;
+            File xml = new File(b.getRootDir(), "build.xml");
+            String s = FileUtils.readFileToString(xml, "UTF-8");
+            FileUtils.writeStringToFile(xml, s.replaceFirst("<timestamp>\\d+</timestamp>", "<timestamp>" + timestamp + "</timestamp>"), "UTF-8");
+        }
+    }
+
+    private static Ratio ratio(Random random, int total) {
+        return new Ratio(random.nextInt(total + 1), total);
+    }
+
+    private static void measure(List<String> failures, String name, long budget, Scenario scenario) throws Exception {
+        scenario.run();
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            scenario.run();
+            times[i] = (System.nanoTime() - start) / 1000000;
+        }
+        Arrays.sort(times);
+        long median = times[RUNS / 2];
+        LOGGER.info(name + " median " + median + " ms, max " + times[RUNS - 1] + " ms");
+        if (median > budget) {
+            failures.add(name + ": " + median + " ms, budget " + budget + " ms");
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private interface Scenario {
+        void run() throws Exception;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LargeHistoryLoadTest.class.getName());
+}